@@ -0,0 +1,476 @@
+package wjw.hbase.solr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每个Solr节点(host:port)一个持久连接池的HTTP/1.1实现,支持每个节点的最大连接数,空闲连接回收以及请求流水线(pipelining).
+ * 只支持http,https的请求交给UrlConnectionSolrTransport处理.
+ */
+class PooledSolrTransport implements SolrTransport {
+	private static final String ISO_8859_1 = "ISO-8859-1";
+	private static final long STALE_CHECK_MILLIS = 1000; //空闲超过这个时间的连接复用前先检查是不是已经被服务器关掉了
+
+	private final int maxPerRoute; //每个节点的最大连接数
+	private final long idleMillis; //空闲连接的最大存活时间(毫秒)
+	private final SolrTransport fallback = new UrlConnectionSolrTransport();
+
+	private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<String, Route>();
+
+	/**
+	 * 一个Solr节点的连接池
+	 */
+	private static class Route {
+		final String host;
+		final int port;
+		final Semaphore permits;
+		final LinkedList<Conn> idles = new LinkedList<Conn>(); //最近用过的在前面
+
+		Route(String host, int port, int maxPerRoute) {
+			this.host = host;
+			this.port = port;
+			this.permits = new Semaphore(maxPerRoute, true);
+		}
+	}
+
+	/**
+	 * 一个keep-alive的连接
+	 */
+	private static class Conn {
+		final Socket socket;
+		final InputStream in;
+		final OutputStream out;
+		long lastUsed;
+		boolean reused;
+
+		Conn(Socket socket) throws IOException {
+			this.socket = socket;
+			this.in = new BufferedInputStream(socket.getInputStream(), 8 * 1024);
+			this.out = new BufferedOutputStream(socket.getOutputStream(), 8 * 1024);
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+			}
+		}
+	}
+
+	/**
+	 * 请求体,data里从offset开始的length个字节
+	 */
+	private static class Body {
+		final byte[] data;
+		final int offset;
+		final int length;
+
+		Body(byte[] data, int offset, int length) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * 服务器的一个应答
+	 */
+	private static class Response {
+		String body;
+		boolean keepAlive;
+	}
+
+	/**
+	 *
+	 * @param maxPerRoute
+	 *          - 每个Solr节点的最大连接数
+	 * @param idleMillis
+	 *          - 空闲连接超过这个时间(毫秒)就关闭
+	 */
+	public PooledSolrTransport(int maxPerRoute, long idleMillis) {
+		this.maxPerRoute = maxPerRoute < 1 ? 1 : maxPerRoute;
+		this.idleMillis = idleMillis;
+	}
+
+	@Override
+	public String doGet(String urlstr, int connectTimeout, int readTimeout, String user, String pass) throws IOException {
+		URL url = new URL(urlstr);
+		if (!"http".equalsIgnoreCase(url.getProtocol())) {
+			return fallback.doGet(urlstr, connectTimeout, readTimeout, user, pass);
+		}
+
+		byte[] head = buildHead("GET", url, -1, null, user, pass);
+		return execute(url, connectTimeout, readTimeout, Collections.singletonList(head), null).get(0);
+	}
+
+	@Override
+	public String doPost(String urlstr, int connectTimeout, int readTimeout, byte[] data, int offset, int length,
+	    String contentEncoding, String user, String pass) throws IOException {
+		URL url = new URL(urlstr);
+		if (!"http".equalsIgnoreCase(url.getProtocol())) {
+			return fallback.doPost(urlstr, connectTimeout, readTimeout, data, offset, length, contentEncoding, user, pass);
+		}
+
+		byte[] head = buildHead("POST", url, length, contentEncoding, user, pass);
+		return execute(url, connectTimeout, readTimeout, Collections.singletonList(head),
+		    Collections.singletonList(new Body(data, offset, length))).get(0);
+	}
+
+	@Override
+	public List<String> doPostPipelined(String urlstr, int connectTimeout, int readTimeout, List<byte[]> datas,
+	    List<String> contentEncodings, String user, String pass) throws IOException {
+		URL url = new URL(urlstr);
+		if (!"http".equalsIgnoreCase(url.getProtocol())) {
+			return fallback.doPostPipelined(urlstr, connectTimeout, readTimeout, datas, contentEncodings, user, pass);
+		}
+
+		List<byte[]> heads = new ArrayList<byte[]>(datas.size());
+		List<Body> bodies = new ArrayList<Body>(datas.size());
+		for (int i = 0; i < datas.size(); i++) {
+			byte[] data = datas.get(i);
+			heads.add(buildHead("POST", url, data.length, contentEncodings.get(i), user, pass));
+			bodies.add(new Body(data, 0, data.length));
+		}
+		return execute(url, connectTimeout, readTimeout, heads, bodies);
+	}
+
+	@Override
+	public void close() {
+		for (Route route : routes.values()) {
+			synchronized (route.idles) {
+				for (Conn conn : route.idles) {
+					conn.close();
+				}
+				route.idles.clear();
+			}
+		}
+	}
+
+	/**
+	 * 在同一个连接上先把所有请求都写出去,然后按顺序读取应答.
+	 * 复用的连接可能已经被服务器关闭,只有在写请求时失败才用新连接重试一次;请求发出去以后读应答失败时不重试,
+	 * 因为服务器可能已经处理了请求.空闲较久的连接在复用前先检查一下,避免写出去以后才发现连接已经关了.
+	 */
+	private List<String> execute(URL url, int connectTimeout, int readTimeout, List<byte[]> heads, List<Body> bodies)
+	    throws IOException {
+		Route route = getRoute(url);
+		try {
+			if (!route.permits.tryAcquire(connectTimeout > 0 ? connectTimeout : Integer.MAX_VALUE, TimeUnit.MILLISECONDS)) {
+				throw new IOException("too many connections to " + route.host + ":" + route.port);
+			}
+		} catch (InterruptedException e) {
+			throw new java.io.InterruptedIOException(e.getMessage());
+		}
+
+		try {
+			for (int retry = 0;; retry++) {
+				Conn conn = acquire(route, connectTimeout);
+				List<String> results = new ArrayList<String>(heads.size());
+				boolean keepAlive = true;
+				boolean sent = false;
+				try {
+					conn.socket.setSoTimeout(readTimeout);
+					for (int i = 0; i < heads.size(); i++) {
+						conn.out.write(heads.get(i));
+						if (bodies != null) {
+							Body body = bodies.get(i);
+							conn.out.write(body.data, body.offset, body.length);
+						}
+					}
+					conn.out.flush();
+					sent = true;
+
+					for (int i = 0; i < heads.size(); i++) {
+						Response response = readResponse(conn.in);
+						results.add(response.body);
+						if (!response.keepAlive) {
+							keepAlive = false;
+							if (i < heads.size() - 1) {
+								throw new IOException("connection closed by " + route.host + ":" + route.port + " after " + (i + 1)
+								    + " pipelined requests");
+							}
+						}
+					}
+				} catch (IOException e) {
+					conn.close();
+					if (conn.reused && retry == 0 && !sent && !(e instanceof SocketTimeoutException)) {
+						continue; //写的时候发现空闲连接已经被服务器关掉了
+					}
+					throw e;
+				} catch (RuntimeException e) {
+					conn.close();
+					throw e;
+				}
+
+				release(route, conn, keepAlive);
+				return results;
+			}
+		} finally {
+			route.permits.release();
+		}
+	}
+
+	private Route getRoute(URL url) {
+		int port = url.getPort() == -1 ? url.getDefaultPort() : url.getPort();
+		String key = url.getHost() + ":" + port;
+		Route route = routes.get(key);
+		if (route == null) {
+			route = new Route(url.getHost(), port, maxPerRoute);
+			Route old = routes.putIfAbsent(key, route);
+			if (old != null) {
+				route = old;
+			}
+		}
+		return route;
+	}
+
+	private Conn acquire(Route route, int connectTimeout) throws IOException {
+		long now = System.currentTimeMillis();
+		while (true) {
+			Conn conn;
+			synchronized (route.idles) {
+				evict(route, now);
+				conn = route.idles.poll();
+			}
+			if (conn == null) {
+				break;
+			}
+			if (now - conn.lastUsed >= STALE_CHECK_MILLIS && isStale(conn)) {
+				conn.close();
+				continue;
+			}
+			conn.reused = true;
+			return conn;
+		}
+
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setKeepAlive(true);
+			socket.connect(new InetSocketAddress(route.host, route.port), connectTimeout);
+			return new Conn(socket);
+		} catch (IOException e) {
+			try {
+				socket.close();
+			} catch (IOException ex) {
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * 空闲的连接上读到了数据或者EOF,说明服务器已经关闭了连接
+	 */
+	private static boolean isStale(Conn conn) {
+		try {
+			conn.socket.setSoTimeout(1);
+			conn.in.read();
+			return true;
+		} catch (SocketTimeoutException e) {
+			return false;
+		} catch (IOException e) {
+			return true;
+		}
+	}
+
+	private void release(Route route, Conn conn, boolean keepAlive) {
+		if (!keepAlive) {
+			conn.close();
+			return;
+		}
+
+		conn.lastUsed = System.currentTimeMillis();
+		synchronized (route.idles) {
+			route.idles.addFirst(conn);
+			evict(route, conn.lastUsed);
+		}
+	}
+
+	/**
+	 * 关闭空闲时间太长的连接,调用者必须持有route.idles的锁
+	 */
+	private void evict(Route route, long now) {
+		for (Iterator<Conn> it = route.idles.descendingIterator(); it.hasNext();) {
+			Conn conn = it.next();
+			if (now - conn.lastUsed < idleMillis && !conn.socket.isClosed()) {
+				break;
+			}
+			it.remove();
+			conn.close();
+		}
+	}
+
+	private static byte[] buildHead(String method, URL url, int contentLength, String contentEncoding, String user,
+	    String pass) throws IOException {
+		String file = url.getFile();
+		if (file == null || file.length() == 0) {
+			file = "/";
+		}
+
+		StringBuilder sb = new StringBuilder(256);
+		sb.append(method).append(' ').append(file).append(" HTTP/1.1\r\n");
+		sb.append("Host: ").append(url.getHost());
+		if (url.getPort() != -1) {
+			sb.append(':').append(url.getPort());
+		}
+		sb.append("\r\n");
+		sb.append("Accept: */*\r\n");
+		sb.append("Connection: keep-alive\r\n");
+		if (contentLength >= 0) {
+			sb.append("Content-Type: application/json;charset=").append(SolrTools.UTF_8).append("\r\n");
+			sb.append("Content-Length: ").append(contentLength).append("\r\n");
+		}
+		if (contentEncoding != null) {
+			sb.append("Content-Encoding: ").append(contentEncoding).append("\r\n");
+		}
+		if (user != null && pass != null) {
+			sb.append("Authorization: Basic ")
+			    .append(new String(Base64.encodeBytes((user + ":" + pass).getBytes(SolrTools.UTF_8)))).append("\r\n"); //需要BASIC验证
+		}
+		sb.append("\r\n");
+		return sb.toString().getBytes(ISO_8859_1);
+	}
+
+	private static Response readResponse(InputStream in) throws IOException {
+		String statusLine;
+		int status;
+		do {
+			statusLine = readLine(in);
+			if (statusLine == null) {
+				throw new EOFException("connection closed before response");
+			}
+			String[] parts = statusLine.split(" ", 3);
+			if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+				throw new IOException("bad status line:" + statusLine);
+			}
+			status = Integer.parseInt(parts[1]);
+			if (status / 100 == 1) { //跳过100 Continue
+				readHeaders(in, null);
+			}
+		} while (status / 100 == 1);
+
+		Response response = new Response();
+		response.keepAlive = !statusLine.startsWith("HTTP/1.0");
+		long contentLength = -1;
+		boolean chunked = false;
+		List<String> headers = new ArrayList<String>();
+		readHeaders(in, headers);
+		for (String header : headers) {
+			int idx = header.indexOf(':');
+			if (idx <= 0) {
+				continue;
+			}
+			String name = header.substring(0, idx).trim();
+			String value = header.substring(idx + 1).trim();
+			if (name.equalsIgnoreCase("Content-Length")) {
+				contentLength = Long.parseLong(value);
+			} else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+				chunked = value.toLowerCase().indexOf("chunked") >= 0;
+			} else if (name.equalsIgnoreCase("Connection")) {
+				if (value.equalsIgnoreCase("close")) {
+					response.keepAlive = false;
+				} else if (value.equalsIgnoreCase("keep-alive")) {
+					response.keepAlive = true;
+				}
+			}
+		}
+
+		ByteArrayOutputStream body = new ByteArrayOutputStream(contentLength > 0 ? (int) contentLength : 1024);
+		if (status == 204 || status == 304) {
+			//没有应答体
+		} else if (chunked) {
+			while (true) {
+				String sizeLine = readLine(in);
+				if (sizeLine == null) {
+					throw new EOFException("connection closed in chunked body");
+				}
+				int semi = sizeLine.indexOf(';');
+				int size = Integer.parseInt((semi >= 0 ? sizeLine.substring(0, semi) : sizeLine).trim(), 16);
+				if (size == 0) {
+					readHeaders(in, null); //trailer
+					break;
+				}
+				copy(in, body, size);
+				readLine(in); //chunk后面的CRLF
+			}
+		} else if (contentLength >= 0) {
+			copy(in, body, contentLength);
+		} else { //没有长度,只能读到连接关闭
+			byte[] buf = new byte[4096];
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				body.write(buf, 0, n);
+			}
+			response.keepAlive = false;
+		}
+
+		response.body = body.toString(SolrTools.UTF_8).trim();
+		return response;
+	}
+
+	private static void readHeaders(InputStream in, List<String> headers) throws IOException {
+		String line;
+		while ((line = readLine(in)) != null && line.length() > 0) {
+			if (headers != null) {
+				headers.add(line);
+			}
+		}
+		if (line == null) {
+			throw new EOFException("connection closed in headers");
+		}
+	}
+
+	private static void copy(InputStream in, OutputStream out, long length) throws IOException {
+		byte[] buf = new byte[4096];
+		long remain = length;
+		while (remain > 0) {
+			int n = in.read(buf, 0, (int) Math.min(buf.length, remain));
+			if (n == -1) {
+				throw new EOFException("connection closed, " + remain + " bytes remain");
+			}
+			out.write(buf, 0, n);
+			remain = remain - n;
+		}
+	}
+
+	/**
+	 * 读一行(不含CRLF),连接已关闭并且没有读到数据时返回null
+	 */
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+		int b;
+		while ((b = in.read()) != -1) {
+			if (b == '\n') {
+				break;
+			}
+			line.write(b);
+		}
+		if (b == -1 && line.size() == 0) {
+			return null;
+		}
+		byte[] bytes = line.toByteArray();
+		int len = bytes.length;
+		if (len > 0 && bytes[len - 1] == '\r') {
+			len--;
+		}
+		return new String(bytes, 0, len, ISO_8859_1);
+	}
+}
@@ -0,0 +1,155 @@
+package wjw.hbase.solr;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 不加锁地在多个Solr节点之间选择: 每次取两个候选节点(power of two choices),选负载低的那个,
+ * 它被熔断时换另一个,两个都不能用时按顺序找下一个能用的.
+ * <p>
+ * 负载 = 应答时间的指数移动平均 * (正在处理的请求数 + 1) / 权重.recovering的节点权重低;
+ * 很久没有被选中的节点应答时间按时间衰减,慢节点恢复后能重新分到请求.
+ */
+class SolrBalancer {
+	private static final double LATENCY_ALPHA = 0.3; //应答时间的指数移动平均系数
+	private static final double LATENCY_DECAY_NANOS = 10 * 1000 * 1000 * 1000.0; //没有新样本时应答时间的衰减时间常数
+	private static final double MIN_LATENCY_NANOS = 1000 * 1000.0; //应答时间的下限,没有样本的节点不会无限优先
+	private static final long FAILURE_LATENCY_NANOS = 1000 * 1000 * 1000L; //失败的请求至少按这个应答时间计算,连接被拒绝很快但不能因此多分请求
+
+	/**
+	 * 一个节点的负载,多个线程同时更新时可能丢掉个别样本,不影响选择
+	 */
+	static final class Node {
+		final String url;
+		final AtomicInteger inflight = new AtomicInteger(); //已经发出还没有应答的请求数
+		volatile double latency; //应答时间的指数移动平均(纳秒)
+		volatile long lastSample; //最后一个样本的时间(System.nanoTime)
+		volatile double weight = 1; //权重,recovering的节点小于1
+
+		Node(String url) {
+			this.url = url;
+		}
+
+		void sample(long nanos, long now) {
+			double l = latency;
+			latency = l == 0 ? nanos : l + LATENCY_ALPHA * (nanos - l);
+			lastSample = now;
+		}
+
+		double cost(long now) {
+			double l = latency;
+			if (l > 0) {
+				l = l * Math.exp(-(now - lastSample) / LATENCY_DECAY_NANOS);
+			}
+			return Math.max(l, MIN_LATENCY_NANOS) * (inflight.get() + 1) / weight;
+		}
+
+		@Override
+		public String toString() {
+			return "{inflight:" + inflight.get() + ",latency:" + (long) (latency / 1000000) + "ms"
+			    + (weight == 1 ? "" : ",weight:" + weight) + "}";
+		}
+	}
+
+	private final double _recoveringWeight;
+
+	private final ConcurrentHashMap<String, Node> _nodes = new ConcurrentHashMap<String, Node>();
+	private final AtomicInteger _next = new AtomicInteger(); //选择候选节点用的计数
+
+	/**
+	 * @param recoveringWeight
+	 *          - recovering节点的权重(0到1之间)
+	 */
+	SolrBalancer(double recoveringWeight) {
+		_recoveringWeight = recoveringWeight <= 0 || recoveringWeight > 1 ? 1 : recoveringWeight;
+	}
+
+	Node node(String url) {
+		Node node = _nodes.get(url);
+		if (node == null) {
+			node = new Node(url);
+			Node old = _nodes.putIfAbsent(url, node);
+			if (old != null) {
+				node = old;
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * 从urls里选一个节点,跳过熔断了的节点,都不能用时返回null
+	 */
+	String choose(List<String> urls, SolrNodeHealth health) {
+		int n = urls.size();
+		if (n == 0) {
+			return null;
+		}
+		if (n == 1) {
+			String url = urls.get(0);
+			return health.allow(url) ? url : null;
+		}
+
+		int c = _next.getAndIncrement();
+		int a = (c & Integer.MAX_VALUE) % n;
+		int h = c * 0x9E3779B9; //把计数打散成第二个候选节点的偏移
+		int b = (a + 1 + ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % (n - 1)) % n;
+		long now = System.nanoTime();
+		if (node(urls.get(b)).cost(now) < node(urls.get(a)).cost(now)) {
+			int t = a;
+			a = b;
+			b = t;
+		}
+		if (health.allow(urls.get(a))) { //只对要用的节点调用allow,half-open时它会占用试探的名额
+			return urls.get(a);
+		}
+		if (health.allow(urls.get(b))) {
+			return urls.get(b);
+		}
+		for (int i = 1; i < n; i++) {
+			int j = (a + i) % n;
+			if (j != b && health.allow(urls.get(j))) {
+				return urls.get(j);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 向url发出请求之前调用,得到的节点在应答后交给end()
+	 */
+	Node begin(String url) {
+		Node node = node(url);
+		node.inflight.incrementAndGet();
+		return node;
+	}
+
+	/**
+	 * 请求结束,记下应答时间
+	 *
+	 * @param start
+	 *          - begin()之后的System.nanoTime()
+	 * @param ok
+	 *          - 是否得到了应答
+	 */
+	void end(Node node, long start, boolean ok) {
+		long now = System.nanoTime();
+		node.inflight.decrementAndGet();
+		node.sample(ok ? now - start : Math.max(now - start, FAILURE_LATENCY_NANOS), now);
+	}
+
+	/**
+	 * 集群状态变化后,设置每个节点的权重
+	 *
+	 * @param recovering
+	 *          - 节点是不是recovering
+	 */
+	void setRecovering(String url, boolean recovering) {
+		node(url).weight = recovering ? _recoveringWeight : 1;
+	}
+
+	@Override
+	public String toString() {
+		return _nodes.toString();
+	}
+}
@@ -0,0 +1,107 @@
+package wjw.hbase.solr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.wjw.efjson.JsonObject;
+
+/**
+ * 把一个窗口内同一个id的多次更新合并成一个文档(每个字段后写者胜),行删除会取消它之前的更新.
+ * 一个id只有一次更新时直接使用BigQueue里的原始字节,不解析JSON.
+ */
+class SolrCoalescer {
+	static final String OP_DELETE = "delete";
+
+	private static class Pending {
+		boolean deleted; //窗口内是否有行删除
+		SolrRecord record; //行删除之后的第一次更新
+		JsonObject merged; //行删除之后有多次更新时合并的结果
+	}
+
+	private final Map<String, Pending> _pendings = new LinkedHashMap<String, Pending>();
+	private int _count = 0;
+
+	static boolean isDelete(JsonObject record) {
+		return record.getField(SolrRegionObserver.F_ID) == null && record.getObject(OP_DELETE) != null;
+	}
+
+	static String idOf(JsonObject record) {
+		if (isDelete(record)) {
+			return record.getObject(OP_DELETE).getString(SolrRegionObserver.F_ID);
+		} else {
+			return record.getString(SolrRegionObserver.F_ID);
+		}
+	}
+
+	public void add(SolrRecord record) throws IOException {
+		_count++;
+		Pending pending = _pendings.get(record.id);
+		if (pending == null) {
+			pending = new Pending();
+			_pendings.put(record.id, pending);
+		}
+
+		if (record.delete) {
+			pending.deleted = true;
+			pending.record = null; //行删除取消之前所有的更新
+			pending.merged = null;
+		} else if (pending.record == null) {
+			pending.record = record;
+		} else {
+			if (pending.merged == null) {
+				pending.merged = pending.record.toJsonObject();
+			}
+			pending.merged.mergeIn(record.toJsonObject());
+		}
+	}
+
+	/**
+	 * 合并前的记录数
+	 */
+	public int count() {
+		return _count;
+	}
+
+	public boolean isEmpty() {
+		return _count == 0;
+	}
+
+	/**
+	 * 窗口内需要删除的id,必须在getUpdates()之前提交给Solr
+	 */
+	public List<String> getDeleteIds() {
+		List<String> ids = new ArrayList<String>();
+		for (Map.Entry<String, Pending> entry : _pendings.entrySet()) {
+			if (entry.getValue().deleted) {
+				ids.add(entry.getKey());
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * 合并后的更新记录
+	 */
+	public List<SolrRecord> getUpdates() throws IOException {
+		List<SolrRecord> records = new ArrayList<SolrRecord>(_pendings.size());
+		for (Map.Entry<String, Pending> entry : _pendings.entrySet()) {
+			Pending pending = entry.getValue();
+			if (pending.merged != null) {
+				pending.record = new SolrRecord(entry.getKey(), false, pending.merged.encode().getBytes(SolrTools.UTF_8));
+				pending.merged = null;
+			}
+			if (pending.record != null) {
+				records.add(pending.record);
+			}
+		}
+		return records;
+	}
+
+	public void clear() {
+		_pendings.clear();
+		_count = 0;
+	}
+}
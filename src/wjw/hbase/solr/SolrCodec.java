@@ -0,0 +1,142 @@
+package wjw.hbase.solr;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * BigQueue里数据的压缩.压缩后的数据以MAGIC_DEFLATE开头,后面是原始长度(varint)和deflate数据;
+ * 其他数据(二进制记录以SolrRecord.VERSION或者VERSION_2开头,JSON记录以'{'开头)原样保存,所以改变配置后旧数据仍然可以读取.
+ */
+class SolrCodec {
+	static final byte MAGIC_DEFLATE = (byte) 0xDF;
+
+	static final int MIN_BYTES = 64; //小于这个大小的数据压缩不了多少,不压缩
+
+	private static final SolrCodec NONE = new SolrCodec(false, 0, 0);
+
+	private final boolean deflate;
+	private final int level;
+	private final int minBytes; //小于这个大小的数据不压缩
+
+	private final ThreadLocal<Deflater> _deflater = new ThreadLocal<Deflater>();
+	private final ThreadLocal<Inflater> _inflater = new ThreadLocal<Inflater>();
+	private final ThreadLocal<byte[]> _buf = new ThreadLocal<byte[]>();
+
+	private SolrCodec(boolean deflate, int level, int minBytes) {
+		this.deflate = deflate;
+		this.level = level;
+		this.minBytes = minBytes;
+	}
+
+	/**
+	 * @param name
+	 *          - none 或者 deflate
+	 */
+	static SolrCodec getCodec(String name) throws IOException {
+		if (name == null || name.equalsIgnoreCase("none")) {
+			return NONE;
+		} else if (name.equalsIgnoreCase("deflate")) {
+			return new SolrCodec(true, Deflater.BEST_SPEED, MIN_BYTES);
+		} else {
+			throw new IOException("unknown queue codec:" + name);
+		}
+	}
+
+	/**
+	 * 入队前压缩,压缩后没有变小时返回原始数据
+	 */
+	byte[] encode(byte[] data) {
+		if (!deflate || data.length < minBytes) {
+			return data;
+		}
+
+		Deflater deflater = _deflater.get();
+		if (deflater == null) {
+			deflater = new Deflater(level);
+			_deflater.set(deflater);
+		}
+		byte[] buf = buffer(data.length + 6);
+		buf[0] = MAGIC_DEFLATE;
+		int pos = 1;
+		for (int v = data.length; ; v >>>= 7) {
+			if ((v & ~0x7F) == 0) {
+				buf[pos++] = (byte) v;
+				break;
+			}
+			buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+		}
+
+		deflater.reset();
+		deflater.setInput(data);
+		deflater.finish();
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buf, pos, buf.length - pos);
+			pos += n;
+			if (pos >= data.length) { //压缩后没有变小
+				return data;
+			}
+		}
+
+		byte[] result = new byte[pos];
+		System.arraycopy(buf, 0, result, 0, pos);
+		return result;
+	}
+
+	/**
+	 * 出队后解压,不是压缩数据时原样返回.不管当前配置是什么都能解压.
+	 */
+	byte[] decode(byte[] data) throws IOException {
+		if (data == null || data.length == 0 || data[0] != MAGIC_DEFLATE) {
+			return data;
+		}
+
+		int pos = 1;
+		int length = 0;
+		for (int shift = 0;; shift += 7) {
+			if (pos >= data.length || shift > 28) {
+				throw new IOException("malformed compressed record");
+			}
+			byte b = data[pos++];
+			length |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+
+		Inflater inflater = _inflater.get();
+		if (inflater == null) {
+			inflater = new Inflater();
+			_inflater.set(inflater);
+		}
+		inflater.reset();
+		inflater.setInput(data, pos, data.length - pos);
+		byte[] result = new byte[length];
+		try {
+			int n = 0;
+			while (n < length && !inflater.finished()) {
+				int r = inflater.inflate(result, n, length - n);
+				if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += r;
+			}
+			if (n != length) {
+				throw new IOException("truncated compressed record:" + n + "/" + length);
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e);
+		}
+		return result;
+	}
+
+	private byte[] buffer(int size) {
+		byte[] buf = _buf.get();
+		if (buf == null || buf.length < size) {
+			buf = new byte[Math.max(size, 4096)];
+			_buf.set(buf);
+		}
+		return buf;
+	}
+}
@@ -0,0 +1,299 @@
+package wjw.hbase.solr;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+/**
+ * 什么时候让Solr提交(commit)已经发送的数据:
+ * <ul>
+ * <li>none - 不提交,由Solr服务器的autoCommit/autoSoftCommit决定</li>
+ * <li>within - 每个更新请求带上commitWithin参数</li>
+ * <li>soft - 累计发送了commitDocs条数据或者过了commitMillis毫秒后发送一次软提交</li>
+ * </ul>
+ * soft时所有RegionServer通过ZooKeeper选出一个协调者,只有协调者向Solr发送提交,
+ * 其他RegionServer最多每commitMillis毫秒(或者累计到commitDocs条时)把自己发送的条数加到request节点上(带版本号的setData,不会互相覆盖);
+ * 协调者提交成功后才从request节点减去这次提交的条数,协调者换了以后新的协调者接着提交节点里剩下的条数.
+ * 没有ZooKeeper节点时每个RegionServer自己提交.
+ */
+class SolrCommitPolicy {
+	private static Logger log = Logger.getLogger(SolrCommitPolicy.class);
+
+	static final String POLICY_NONE = "none";
+	static final String POLICY_WITHIN = "within";
+	static final String POLICY_SOFT = "soft";
+
+	private static final int ZK_SESSION_TIMEOUT = 30 * 1000;
+
+	private final String _policy;
+	private final int _commitWithin;
+	private final long _commitDocs;
+	private final long _commitMillis;
+	private final SolrRegionObserver _indexer;
+
+	private final String _zkQuorum; //为null时不协调,自己提交
+	private final String _leaderPath;
+	private final String _requestPath;
+	private ZooKeeper _zk;
+
+	private final AtomicLong _sent = new AtomicLong(); //上一次检查以后成功发送的条数
+	private final AtomicLong _commits = new AtomicLong(); //发送的提交次数
+	private boolean _leader = false;
+	private boolean _dirty = false; //协调者: 上次提交以后自己有没有新数据
+	private long _pendingDocs = 0; //协调者: 上次提交以后自己发送的条数
+	private long _lastCommit = System.currentTimeMillis();
+	private long _unsignaled = 0; //非协调者: 还没有报告的条数
+	private long _lastSignal = 0;
+
+	private ScheduledExecutorService _schedule;
+
+	/**
+	 * @param zkQuorum
+	 *          - 协调用的ZooKeeper,为null时每个RegionServer自己提交
+	 * @param zNode
+	 *          - 协调用的ZooKeeper节点
+	 */
+	SolrCommitPolicy(SolrRegionObserver indexer, String policy, int commitWithin, long commitDocs, long commitMillis,
+	    String zkQuorum, String zNode) {
+		if (!policy.equalsIgnoreCase(POLICY_NONE) && !policy.equalsIgnoreCase(POLICY_WITHIN)
+		    && !policy.equalsIgnoreCase(POLICY_SOFT)) {
+			throw new IllegalArgumentException("unknown commit policy:" + policy);
+		}
+		_indexer = indexer;
+		_policy = policy;
+		_commitWithin = commitWithin;
+		_commitDocs = commitDocs < 1 ? Long.MAX_VALUE : commitDocs;
+		_commitMillis = commitMillis < 1 ? 1000 : commitMillis;
+		_zkQuorum = (zkQuorum == null || zNode == null || zNode.length() == 0) ? null : zkQuorum;
+		_leaderPath = zNode + "/leader";
+		_requestPath = zNode + "/request";
+	}
+
+	void start() {
+		if (!_policy.equalsIgnoreCase(POLICY_SOFT)) {
+			return;
+		}
+
+		long tick = Math.max(100, _commitMillis / 4);
+		_schedule = Executors.newSingleThreadScheduledExecutor();
+		_schedule.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tick();
+				} catch (Throwable t) {
+					log.error(t.getMessage(), t);
+				}
+			}
+		}, tick, tick, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 更新请求要用的URL,within时加上commitWithin参数
+	 */
+	String updateUrl(String urlUpdate) {
+		if (_policy.equalsIgnoreCase(POLICY_WITHIN)) {
+			return urlUpdate + (urlUpdate.indexOf('?') < 0 ? "?" : "&") + "commitWithin=" + _commitWithin;
+		}
+		return urlUpdate;
+	}
+
+	/**
+	 * Solr确认收到了docs条数据
+	 */
+	void onSent(int docs) {
+		if (_schedule != null && docs > 0) {
+			_sent.addAndGet(docs);
+		}
+	}
+
+	private void tick() throws Exception {
+		long now = System.currentTimeMillis();
+		long docs = _sent.getAndSet(0);
+		try {
+			_leader = isLeader();
+		} catch (KeeperException.SessionExpiredException e) {
+			log.warn("commit coordinator session expired, reconnect:" + _zkQuorum);
+			closeZk();
+			_leader = false;
+		} catch (KeeperException e) {
+			log.debug("commit coordinator not ready:" + e);
+			_leader = false;
+		}
+
+		if (!_leader) {
+			_unsignaled = _unsignaled + docs;
+			if (_zk != null && _unsignaled > 0 && (_unsignaled >= _commitDocs || now - _lastSignal >= _commitMillis)) {
+				try {
+					if (addRequest(_unsignaled)) {
+						_unsignaled = 0;
+						_lastSignal = now;
+					}
+				} catch (Exception e) {
+					log.debug("signal commit coordinator failed:" + e);
+				}
+			}
+			return;
+		}
+
+		if (_unsignaled > 0) { //刚成为协调者,自己还没有报告的数据
+			docs = docs + _unsignaled;
+			_unsignaled = 0;
+		}
+		if (docs > 0) {
+			_dirty = true;
+			_pendingDocs = _pendingDocs + docs;
+		}
+		long requested = 0; //其他RegionServer报告了还没有提交的条数,包括以前的协调者留下的
+		if (_zk != null) {
+			try {
+				requested = parseCount(_zk.getData(_requestPath, false, null));
+			} catch (KeeperException e) {
+				log.debug("read commit requests failed:" + e);
+			}
+		}
+
+		if ((_dirty || requested > 0) && (_pendingDocs + requested >= _commitDocs || now - _lastCommit >= _commitMillis)) {
+			try {
+				_indexer.solrCommit();
+			} catch (Exception e) {
+				log.warn("solr soft commit failed, will retry:" + e.getMessage());
+				return;
+			}
+			_commits.incrementAndGet();
+			_dirty = false;
+			_pendingDocs = 0;
+			_lastCommit = now;
+			if (requested > 0) {
+				try {
+					addRequest(-requested); //只减去这次提交的,期间新报告的留到下次
+				} catch (Exception e) {
+					log.debug("clear commit request failed, will commit again:" + e); //多提交一次没有关系
+				}
+			}
+		}
+	}
+
+	/**
+	 * 把delta加到request节点的条数上,用版本号防止和其他RegionServer互相覆盖
+	 * 
+	 * @return 一直有冲突时返回false,下次再试
+	 */
+	private boolean addRequest(long delta) throws KeeperException, InterruptedException, IOException {
+		for (int i = 0; i < 10; i++) {
+			Stat stat = new Stat();
+			long count = parseCount(_zk.getData(_requestPath, false, stat));
+			try {
+				_zk.setData(_requestPath, String.valueOf(Math.max(count + delta, 0)).getBytes(SolrTools.UTF_8), stat.getVersion());
+				return true;
+			} catch (KeeperException.BadVersionException e) { //别的RegionServer刚修改过,重新读取
+			}
+		}
+		return false;
+	}
+
+	private static long parseCount(byte[] data) {
+		if (data == null || data.length == 0) {
+			return 0;
+		}
+		try {
+			return Long.parseLong(new String(data, SolrTools.UTF_8));
+		} catch (Exception e) {
+			return 1; //不认识的内容,当作有数据,提交后清除
+		}
+	}
+
+	/**
+	 * 本机是不是协调者,没有ZooKeeper时总是
+	 */
+	private boolean isLeader() throws KeeperException, InterruptedException, IOException {
+		if (_zkQuorum == null) {
+			return true;
+		}
+		if (_zk == null || !_zk.getState().isAlive()) {
+			closeZk();
+			_zk = new ZooKeeper(_zkQuorum, ZK_SESSION_TIMEOUT, new Watcher() {
+				@Override
+				public void process(WatchedEvent event) {
+				}
+			});
+		}
+		if (!_zk.getState().isConnected()) {
+			return false;
+		}
+
+		Stat stat = _zk.exists(_leaderPath, false);
+		if (stat == null) {
+			ensurePath(_requestPath.substring(0, _requestPath.lastIndexOf('/')));
+			try {
+				_zk.create(_requestPath, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+			} catch (KeeperException.NodeExistsException e) {
+			}
+			try {
+				_zk.create(_leaderPath, ManagementFactory.getRuntimeMXBean().getName().getBytes(SolrTools.UTF_8),
+				    ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL);
+				log.info("became solr commit coordinator:" + _leaderPath);
+				return true;
+			} catch (KeeperException.NodeExistsException e) {
+				return false;
+			}
+		}
+		return stat.getEphemeralOwner() == _zk.getSessionId();
+	}
+
+	private void ensurePath(String path) throws KeeperException, InterruptedException {
+		int idx = 0;
+		while (idx >= 0) {
+			idx = path.indexOf('/', idx + 1);
+			String node = idx < 0 ? path : path.substring(0, idx);
+			if (node.length() > 0 && _zk.exists(node, false) == null) {
+				try {
+					_zk.create(node, new byte[0], ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+				} catch (KeeperException.NodeExistsException e) {
+				}
+			}
+		}
+	}
+
+	private void closeZk() {
+		if (_zk != null) {
+			try {
+				_zk.close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			_zk = null;
+		}
+	}
+
+	void close() {
+		if (_schedule == null) {
+			return;
+		}
+		_schedule.shutdown();
+		try {
+			_schedule.awaitTermination(10, TimeUnit.SECONDS);
+			tick(); //把自己发送的数据报告出去或者提交
+		} catch (Exception e) {
+			log.warn(e.getMessage(), e);
+		}
+		closeZk(); //协调者的临时节点随之删除,其他RegionServer接替
+	}
+
+	@Override
+	public String toString() {
+		return _policy + (_schedule == null ? "" : "{leader:" + _leader + ",commits:" + _commits.get() + "}");
+	}
+}
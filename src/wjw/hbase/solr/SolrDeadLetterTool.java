@@ -0,0 +1,143 @@
+package wjw.hbase.solr;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * 死信队列的命令行工具,在RegionServer所在的机器上运行:
+ *
+ * <pre>
+ * export &lt;queueDir&gt; &lt;file&gt;  让RegionServer把死信队列里的全部死信移到文件里,每行一条
+ * replay &lt;queueDir&gt; &lt;file&gt;  把修改好的文件(每行一条死信或者一个Solr文档)放进replay目录,RegionServer会重新提交
+ * </pre>
+ *
+ * BigQueue不能被多个进程同时使用,这个工具不打开任何队列,只在replay目录里放文件,由RegionServer导出和重新提交.
+ */
+public class SolrDeadLetterTool {
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3) {
+			usage();
+			return;
+		}
+
+		if (args[0].equalsIgnoreCase("export")) {
+			File command = export(args[1], new File(args[2]));
+			System.out.println("export requested:" + command);
+			String result = await(command, SolrDeadLetters.EXPORT_SUFFIX, 120 * 1000L);
+			if (result == null) {
+				System.out.println("RegionServer has not processed the request yet, it will export when running");
+			} else if (result.equals(SolrDeadLetters.DONE_SUFFIX)) {
+				System.out.println("exported dead letters to:" + args[2]);
+			} else {
+				System.err.println("export failed, see the RegionServer log:" + command);
+			}
+		} else if (args[0].equalsIgnoreCase("replay")) {
+			File file = replay(args[1], new File(args[2]));
+			System.out.println("queued for replay:" + file);
+		} else {
+			usage();
+		}
+	}
+
+	private static void usage() {
+		System.err.println("usage: " + SolrDeadLetterTool.class.getName() + " export <queueDir> <file>");
+		System.err.println("       " + SolrDeadLetterTool.class.getName() + " replay <queueDir> <file>");
+	}
+
+	/**
+	 * 在replay目录里放一个导出命令,RegionServer把死信追加到file里,sync以后才从死信队列里移走
+	 *
+	 * @return 命令文件
+	 */
+	static File export(String queueDir, File file) throws IOException {
+		String name = System.currentTimeMillis() + "_" + file.getName();
+		return publish(queueDir, name + SolrDeadLetters.EXPORT_SUFFIX, file.getAbsolutePath().getBytes(SolrTools.UTF_8));
+	}
+
+	/**
+	 * 等待RegionServer处理命令文件
+	 *
+	 * @return 处理后的后缀(*.done或者*.failed),超时返回null
+	 */
+	static String await(File command, String suffix, long millis) throws InterruptedException {
+		String name = command.getName();
+		String base = name.substring(0, name.length() - suffix.length());
+		long deadline = System.currentTimeMillis() + millis;
+		while (System.currentTimeMillis() < deadline) {
+			if (new File(command.getParentFile(), base + SolrDeadLetters.DONE_SUFFIX).exists()) {
+				return SolrDeadLetters.DONE_SUFFIX;
+			}
+			if (new File(command.getParentFile(), base + SolrDeadLetters.FAILED_SUFFIX).exists()) {
+				return SolrDeadLetters.FAILED_SUFFIX;
+			}
+			Thread.sleep(500);
+		}
+		return null;
+	}
+
+	/**
+	 * 先写临时文件再改名,RegionServer不会读到写了一半的文件
+	 */
+	private static File publish(String queueDir, String name, byte[] data) throws IOException {
+		File dir = new File(queueDir, SolrDeadLetters.REPLAY_DIR);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can not create:" + dir);
+		}
+		File tmp = new File(dir, name + ".tmp");
+		File target = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(data);
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(target)) {
+			tmp.delete();
+			throw new IOException("can not rename " + tmp + " to " + target);
+		}
+		return target;
+	}
+
+	/**
+	 * 检查文件格式后复制到replay目录,先写临时文件再改名,RegionServer不会读到写了一半的文件
+	 *
+	 * @return replay目录里的文件
+	 */
+	static File replay(String queueDir, File file) throws IOException {
+		int docs = SolrDeadLetters.readEntries(file).size();
+		if (docs == 0) {
+			throw new IOException("no docs in:" + file);
+		}
+
+		File dir = new File(queueDir, SolrDeadLetters.REPLAY_DIR);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("can not create:" + dir);
+		}
+		String name = System.currentTimeMillis() + "_" + file.getName();
+		File tmp = new File(dir, name + ".tmp");
+		File target = new File(dir, name + SolrDeadLetters.REPLAY_SUFFIX);
+		java.io.FileInputStream in = new java.io.FileInputStream(file);
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				byte[] buf = new byte[8192];
+				int n;
+				while ((n = in.read(buf)) > 0) {
+					out.write(buf, 0, n);
+				}
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		if (!tmp.renameTo(target)) {
+			tmp.delete();
+			throw new IOException("can not rename " + tmp + " to " + target);
+		}
+		return target;
+	}
+}
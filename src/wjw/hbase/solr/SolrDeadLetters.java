@@ -0,0 +1,316 @@
+package wjw.hbase.solr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.wjw.efjson.JsonObject;
+
+import com.leansoft.bigqueue.BigArrayImpl;
+import com.leansoft.bigqueue.IBigArray;
+
+/**
+ * Solr永久拒绝的文档(死信),连同错误信息放进单独的BigQueue,不再挡住后面的数据.
+ * <p>
+ * 每条死信是一个JSON对象: {"id":"...","status":400,"error":"...","time":...,"partition":3,"partitions":8,"partitionBy":"row","doc":{...}},
+ * doc是原样的Solr JSON;partition是记录所在的更新队列分区(id里的rowkey是按UTF-8解码的,二进制rowkey算不回原来的分区),
+ * 重新提交时放回同一个分区,才不会和这一行后来的更新乱序.
+ * 用SolrDeadLetterTool导出,修改后放进replay目录,RegionServer会把里面的文档重新放进更新队列.
+ * <p>
+ * 队列只由RegionServer打开(BigQueue不能被多个进程同时使用),导出也在RegionServer里做: SolrDeadLetterTool在replay目录里放一个
+ * *.export命令文件,内容是导出的目标文件.磁盘格式和BigQueueImpl相同,导出时先读取,目标文件sync以后才移动队头.
+ */
+class SolrDeadLetters {
+	private static Logger log = Logger.getLogger(SolrDeadLetters.class);
+
+	static final String QUEUE_NAME = "hbase_solr_deadletter";
+	static final String REPLAY_DIR = "hbase_solr_replay"; //要重新提交的文件(*.json,每行一条死信或者一个文档),处理完后改名为*.done
+	static final String REPLAY_SUFFIX = ".json";
+	static final String DONE_SUFFIX = ".done";
+	static final String EXPORT_SUFFIX = ".export"; //导出命令文件,处理完后改名为*.done,失败时改名为*.failed
+	static final String FAILED_SUFFIX = ".failed";
+
+	private static final String FRONT_INDEX_FOLDER = "front_index"; //和BigQueueImpl相同
+	private static final String FRONT_INDEX_FILE = "page-0.dat";
+
+	static final String F_STATUS = "status";
+	static final String F_ERROR = "error";
+	static final String F_TIME = "time";
+	static final String F_DOC = "doc";
+	static final String F_PARTITION = "partition";
+	static final String F_PARTITIONS = "partitions";
+	static final String F_PARTITIONBY = "partitionBy";
+
+	private final IBigArray _array;
+	private final RandomAccessFile _frontFile;
+	private final MappedByteBuffer _frontBuffer; //持久化的队头(已经导出的位置)
+	private volatile long _front;
+	private final File _replayDir;
+	private final AtomicLong _added = new AtomicLong(); //启动后新增的死信数
+	private final AtomicLong _replayed = new AtomicLong(); //启动后重新提交的文档数
+
+	SolrDeadLetters(String queueDir) throws IOException {
+		_array = new BigArrayImpl(queueDir, QUEUE_NAME, BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		File frontDir = new File(((BigArrayImpl) _array).getArrayDirectory(), FRONT_INDEX_FOLDER);
+		frontDir.mkdirs();
+		_frontFile = new RandomAccessFile(new File(frontDir, FRONT_INDEX_FILE), "rw");
+		_frontBuffer = _frontFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+		_front = _frontBuffer.getLong(0);
+		if (_front != _array.getHeadIndex() && (_front < _array.getTailIndex() || _front > _array.getHeadIndex())) { //和BigQueueImpl一样,无效时从最早的数据开始
+			_front = _array.getTailIndex();
+			_frontBuffer.putLong(0, _front);
+		}
+		_replayDir = new File(queueDir, REPLAY_DIR);
+	}
+
+	/**
+	 * 回收已经导出的文件
+	 */
+	synchronized void gc() throws IOException {
+		long beforeIndex = _front;
+		if (beforeIndex == 0L) {
+			beforeIndex = Long.MAX_VALUE;
+		} else {
+			beforeIndex--;
+		}
+		try {
+			_array.removeBeforeIndex(beforeIndex);
+		} catch (IndexOutOfBoundsException e) { //和BigQueueImpl.gc()一样,忽略!
+		}
+	}
+
+	/**
+	 * 还没有导出的死信数
+	 */
+	long size() {
+		return _array.getHeadIndex() - _front;
+	}
+
+	/**
+	 * 把还没有导出的死信追加到文件里,每行一条.文件sync以后才移动队头,中途出错时死信还在队列里
+	 *
+	 * @return 导出的条数
+	 */
+	synchronized long export(File file) throws IOException {
+		long front = _front;
+		long head = _array.getHeadIndex();
+		FileOutputStream out = new FileOutputStream(file, true);
+		Writer writer = new OutputStreamWriter(out, SolrTools.UTF_8);
+		try {
+			for (long i = front; i < head; i++) {
+				writer.write(new String(_array.get(i), SolrTools.UTF_8));
+				writer.write('\n');
+			}
+			writer.flush();
+			out.getFD().sync();
+		} finally {
+			writer.close();
+		}
+		_front = head;
+		_frontBuffer.putLong(0, head);
+		_frontBuffer.force();
+		log.info("exported " + (head - front) + " dead letters to:" + file);
+		return head - front;
+	}
+
+	/**
+	 * replay目录里等待处理的导出命令,按文件名排序
+	 */
+	File[] exportCommands() {
+		return listReplayDir(EXPORT_SUFFIX);
+	}
+
+	/**
+	 * 执行一个导出命令,命令文件的内容是目标文件的路径.处理完后改名为*.done,失败时改名为*.failed
+	 */
+	void runExport(File command) {
+		String suffix = DONE_SUFFIX;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(command), SolrTools.UTF_8));
+			String target;
+			try {
+				target = reader.readLine();
+			} finally {
+				reader.close();
+			}
+			if (target == null || target.trim().length() == 0) {
+				throw new IOException("no target file in:" + command);
+			}
+			export(new File(target.trim()));
+		} catch (Exception e) {
+			log.error("can not export dead letters:" + command, e);
+			suffix = FAILED_SUFFIX;
+		}
+		String name = command.getName();
+		File done = new File(command.getParentFile(), name.substring(0, name.length() - EXPORT_SUFFIX.length()) + suffix);
+		if (!command.renameTo(done)) {
+			log.warn("can not rename export command:" + command + ",delete it");
+			command.delete();
+		}
+	}
+
+	/**
+	 * 记录一条被Solr永久拒绝的文档
+	 *
+	 * @param id
+	 *          - 文档id,按查询删除时为null
+	 * @param partition
+	 *          - 记录所在的更新队列分区,不在分区里时为-1
+	 * @param partitions
+	 *          - 当时的分区数
+	 * @param partitionBy
+	 *          - 当时的分区方式
+	 */
+	void add(String id, JsonObject doc, SolrResponseException e, int partition, int partitions, String partitionBy) {
+		JsonObject entry = new JsonObject();
+		if (id != null) {
+			entry.putString(SolrRegionObserver.F_ID, id);
+		}
+		entry.putNumber(F_STATUS, e.status);
+		entry.putString(F_ERROR, e.getErrorMessage());
+		entry.putNumber(F_TIME, System.currentTimeMillis());
+		if (partition >= 0) {
+			entry.putNumber(F_PARTITION, partition);
+			entry.putNumber(F_PARTITIONS, partitions);
+			entry.putString(F_PARTITIONBY, partitionBy);
+		}
+		entry.putObject(F_DOC, doc);
+		try {
+			_array.append(entry.encode().getBytes(SolrTools.UTF_8));
+			_added.incrementAndGet();
+			log.error("dead letter:" + entry.encode());
+		} catch (IOException ex) { //写不进死信队列时至少留在日志里
+			log.error("can not write dead letter:" + entry.encode(), ex);
+		}
+	}
+
+	/**
+	 * replay目录里等待处理的文件,按文件名排序
+	 */
+	File[] replayFiles() {
+		return listReplayDir(REPLAY_SUFFIX);
+	}
+
+	private File[] listReplayDir(final String suffix) {
+		File[] files = _replayDir.listFiles(new java.io.FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(suffix);
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		java.util.Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * 开始重新提交一个replay文件之前把它改名为*.done,保证最多处理一次
+	 *
+	 * @return 改名后的文件,改不了名时返回null,这时不能处理
+	 */
+	File claim(File file) {
+		File done = rename(file, DONE_SUFFIX);
+		if (done == null) {
+			log.error("can not rename replay file, skip it:" + file);
+		}
+		return done;
+	}
+
+	/**
+	 * 格式不对或者无法路由的replay文件改名为*.failed,修改后重新放进来
+	 */
+	void reject(File file) {
+		if (rename(file, FAILED_SUFFIX) == null) {
+			log.warn("can not rename bad replay file:" + file + ",delete it");
+			file.delete();
+		}
+	}
+
+	private static File rename(File file, String suffix) {
+		String name = file.getName();
+		File target = new File(file.getParentFile(), name.substring(0, name.length() - REPLAY_SUFFIX.length()) + suffix);
+		return file.renameTo(target) ? target : null;
+	}
+
+	/**
+	 * 一个replay文件里的文档都放进了更新队列
+	 */
+	void replayed(File file, int docs) {
+		_replayed.addAndGet(docs);
+		log.info("replayed " + docs + " docs from:" + file);
+	}
+
+	/**
+	 * 死信记下的分区,分区数或者分区方式和现在不一样,或者没有记下时返回-1
+	 */
+	static int partitionOf(JsonObject entry, int partitions, String partitionBy) {
+		Number partition = entry.getNumber(F_PARTITION);
+		Number count = entry.getNumber(F_PARTITIONS);
+		if (partition == null || count == null || count.intValue() != partitions
+		    || !partitionBy.equalsIgnoreCase(entry.getString(F_PARTITIONBY, ""))) {
+			return -1;
+		}
+		int index = partition.intValue();
+		return index >= 0 && index < partitions ? index : -1;
+	}
+
+	/**
+	 * 读取一个死信文件,每行是一条死信或者一个Solr文档,空行忽略.Solr文档包装成只有doc的死信
+	 */
+	static List<JsonObject> readEntries(File file) throws IOException {
+		List<JsonObject> entries = new java.util.ArrayList<JsonObject>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), SolrTools.UTF_8));
+		try {
+			String line;
+			int lineNo = 0;
+			while ((line = reader.readLine()) != null) {
+				lineNo++;
+				line = line.trim();
+				if (line.length() == 0) {
+					continue;
+				}
+				JsonObject entry;
+				try {
+					entry = new JsonObject(line);
+				} catch (RuntimeException e) {
+					throw new IOException(file + ":" + lineNo + ":" + e.getMessage(), e);
+				}
+				if (entry.getField(F_STATUS) != null && entry.getObject(F_DOC) != null) {
+					entries.add(entry);
+				} else {
+					entries.add(new JsonObject().putObject(F_DOC, entry));
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return entries;
+	}
+
+	synchronized void close() throws IOException {
+		try {
+			_array.close();
+			_frontBuffer.force();
+		} finally {
+			_frontFile.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "{size:" + size() + ",added:" + _added.get() + ",replayed:" + _replayed.get() + "}";
+	}
+}
@@ -0,0 +1,171 @@
+package wjw.hbase.solr;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 一个BigQueue的名字字典(表名和"family#qualifier"字段名),队列里的二进制记录只保存名字的编号.
+ * <p>
+ * 字典只追加不删除,只有已经写进文件的名字才有编号.新名字先放进待写列表,这条记录里直接写名字,
+ * 由取数据的线程调用flush()写进文件以后,之后的记录才使用编号,所以RPC线程上没有文件读写,宕机时也不会有引用不到的编号.
+ * 名字数有上限,qualifier是动态的(比如带时间戳)时超过上限的名字总是直接写在记录里.
+ */
+class SolrDictionary {
+	private static Logger log = Logger.getLogger(SolrDictionary.class);
+
+	static final int MAX_NAMES = 65536; //字典里最多的名字数
+
+	private final File _file;
+	private final ConcurrentHashMap<String, Integer> _ids = new ConcurrentHashMap<String, Integer>();
+	private volatile String[] _names = new String[0]; //编号到名字,新增时整体替换
+	private final ConcurrentHashMap<String, Boolean> _pending = new ConcurrentHashMap<String, Boolean>(); //等待写进文件的新名字
+	private DataOutputStream _out;
+	private volatile boolean _fullLogged = false;
+
+	private SolrDictionary(File file) {
+		_file = file;
+	}
+
+	/**
+	 * 打开queueDir下名为name.dict的字典文件,不存在时新建.文件末尾不完整的条目(写到一半时宕机)会被截掉.
+	 */
+	static SolrDictionary open(String queueDir, String name) throws IOException {
+		SolrDictionary dict = new SolrDictionary(new File(queueDir, name + ".dict"));
+		dict.load();
+		return dict;
+	}
+
+	private void load() throws IOException {
+		java.util.List<String> names = new java.util.ArrayList<String>();
+		long validLength = 0;
+		if (_file.exists()) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_file)));
+			try {
+				while (true) {
+					String name = in.readUTF();
+					validLength = validLength + 2 + utfLength(name);
+					_ids.put(name, names.size());
+					names.add(name);
+				}
+			} catch (EOFException e) {
+				//读完了
+			} finally {
+				in.close();
+			}
+
+			if (validLength < _file.length()) {
+				log.warn("truncate incomplete dictionary entry:" + _file + ",length:" + _file.length() + "->" + validLength);
+				RandomAccessFile raf = new RandomAccessFile(_file, "rw");
+				try {
+					raf.setLength(validLength);
+				} finally {
+					raf.close();
+				}
+			}
+		} else {
+			_file.getParentFile().mkdirs();
+		}
+		_names = names.toArray(new String[names.size()]);
+		_out = new DataOutputStream(new java.io.BufferedOutputStream(new FileOutputStream(_file, true)));
+	}
+
+	/**
+	 * 返回名字的编号,还没有写进文件时返回-1(记录里直接写名字),并且在字典没满时把它放进待写列表.不加锁,不读写文件
+	 */
+	int id(String name) {
+		Integer id = _ids.get(name);
+		if (id != null) {
+			return id;
+		}
+
+		if (_names.length + _pending.size() < MAX_NAMES) {
+			_pending.putIfAbsent(name, Boolean.TRUE);
+		} else if (!_fullLogged) {
+			_fullLogged = true;
+			log.warn("dictionary is full, new names are written inline:" + _file + ",size:" + _names.length);
+		}
+		return -1;
+	}
+
+	/**
+	 * 把待写的新名字写进文件,之后的记录才能使用它们的编号.由取数据的线程定期调用
+	 */
+	synchronized void flush() throws IOException {
+		if (_pending.isEmpty()) {
+			return;
+		}
+		java.util.List<String> added = new java.util.ArrayList<String>();
+		for (String name : _pending.keySet()) {
+			if (_names.length + added.size() >= MAX_NAMES) {
+				break;
+			}
+			if (!_ids.containsKey(name)) {
+				_out.writeUTF(name);
+				added.add(name);
+			}
+		}
+		_out.flush();
+		_pending.clear();
+
+		String[] names = new String[_names.length + added.size()];
+		System.arraycopy(_names, 0, names, 0, _names.length);
+		for (int i = 0; i < added.size(); i++) {
+			names[_names.length + i] = added.get(i);
+		}
+		_names = names; //先发布名字,再发布编号
+		for (int i = _names.length - added.size(); i < _names.length; i++) {
+			_ids.put(names[i], i);
+		}
+	}
+
+	/**
+	 * 返回编号对应的名字
+	 */
+	String name(int id) throws IOException {
+		String[] names = _names;
+		if (id < 0 || id >= names.length) {
+			throw new IOException("unknown dictionary id:" + id + ",file:" + _file);
+		}
+		return names[id];
+	}
+
+	int size() {
+		return _names.length;
+	}
+
+	synchronized void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			_out.close();
+		}
+	}
+
+	/**
+	 * DataOutput.writeUTF()写出的字节数(不含2个字节的长度)
+	 */
+	private static int utfLength(String s) {
+		int len = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				len++;
+			} else if (c > 0x07FF) {
+				len += 3;
+			} else {
+				len += 2;
+			}
+		}
+		return len;
+	}
+}
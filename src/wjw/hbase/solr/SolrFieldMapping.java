@@ -0,0 +1,527 @@
+package wjw.hbase.solr;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.hbase.Cell;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.log4j.Logger;
+
+/**
+ * HBase的列(family,qualifier)到Solr字段的映射.每个表按family和qualifier的原始字节缓存解析结果,
+ * 同一个列第二次出现时只要一次hash查找.
+ * <p>
+ * 缺省按qualifier的后缀(_s,_t,_dt,_i,_l,_f,_d,_b)决定类型,Solr字段名是family#qualifier;
+ * 也可以用hbase.solr.mapping.${TableName}给表配置明确的映射,格式是逗号分隔的
+ * family:qualifier=type[@encoding][:solrField],type是string,text,date,int,long,float,double,boolean或者none(不索引).
+ * 数值和boolean的encoding缺省是string(ASCII文本),也可以是bytes(Bytes.toBytes写入的值)或者ordered(OrderedBytes编码).
+ * 没有明确配置的列仍然按后缀处理,值是ASCII文本.
+ * <p>
+ * 数值和boolean的值解析不了时按hbase.solr.invalidValue(可以用hbase.solr.invalidValue.${type}给每个类型单独配置)处理:
+ * skip(丢掉这个字段),string(作为字符串写进字段名加_s的字段)或者reject(在prePut里拒绝这个Put).每个表分别计数.
+ */
+class SolrFieldMapping {
+	private static Logger log = Logger.getLogger(SolrFieldMapping.class);
+
+	static final String PREFIX_MAPPING = SolrRegionObserver.PREFIX_HBASE_SOLR + "mapping.";
+
+	static final int ENCODING_STRING = 0; //ASCII文本
+	static final int ENCODING_BYTES = 1; //Bytes.toBytes(int/long/float/double/boolean)
+	static final int ENCODING_ORDERED = 2; //OrderedBytes
+
+	static final String INVALID_SKIP = "skip";
+	static final String INVALID_STRING = "string";
+	static final String INVALID_REJECT = "reject";
+
+	static final String SUFFIX_COERCED = "_s"; //按字符串索引的无效值的字段名后缀
+
+	static final int MAX_CACHED_COLUMNS = 100000; //每个表最多缓存的列数,超过后不再缓存(qualifier是动态生成的表)
+
+	/**
+	 * 一个Solr字段和它的类型
+	 */
+	static class Field {
+		final String name;
+		final int type; //SolrRecord.T_STRING,T_INT,T_LONG,T_FLOAT,T_DOUBLE,或者T_TRUE表示boolean
+		final int encoding; //值的编码: ENCODING_STRING,ENCODING_BYTES 或者 ENCODING_ORDERED
+		final String invalid; //值无效时的处理: INVALID_SKIP,INVALID_STRING 或者 INVALID_REJECT
+		final TableMapping table; //计数的表
+
+		Field(String name, int type, int encoding, String invalid, TableMapping table) {
+			this.name = name;
+			this.type = type;
+			this.encoding = encoding;
+			this.invalid = invalid;
+			this.table = table;
+		}
+
+		/**
+		 * 把cell的值转换成这个字段的类型写进记录,值无效时按invalid处理;
+		 * reject的值应该已经在prePut里拒绝了,到这里(比如从WAL读到的)只能跳过
+		 */
+		void add(SolrRecordBuilder builder, Cell cell) throws IOException {
+			byte[] v = cell.getValueArray();
+			int offset = cell.getValueOffset();
+			int length = cell.getValueLength();
+			if (type == SolrRecord.T_STRING) { //字符串直接复制cell里的UTF-8字节
+				builder.addString(name, v, offset, length);
+				return;
+			}
+
+			try {
+				switch (type) {
+				case SolrRecord.T_INT:
+					builder.addInt(name, intValue(v, offset, length));
+					break;
+				case SolrRecord.T_LONG:
+					builder.addLong(name, longValue(v, offset, length));
+					break;
+				case SolrRecord.T_FLOAT:
+					builder.addFloat(name, floatValue(v, offset, length));
+					break;
+				case SolrRecord.T_DOUBLE:
+					builder.addDouble(name, doubleValue(v, offset, length));
+					break;
+				default:
+					builder.addBoolean(name, booleanValue(v, offset, length));
+				}
+			} catch (IllegalArgumentException e) { //NumberFormatException,OrderedBytes的编码错误
+				addInvalid(builder, v, offset, length, e);
+			} catch (IndexOutOfBoundsException e) { //OrderedBytes的长度错误
+				addInvalid(builder, v, offset, length, e);
+			}
+		}
+
+		private void addInvalid(SolrRecordBuilder builder, byte[] v, int offset, int length, RuntimeException e)
+		    throws IOException {
+			if (invalid.equals(INVALID_STRING)) {
+				if (encoding == ENCODING_STRING) {
+					builder.addString(name + SUFFIX_COERCED, v, offset, length);
+				} else { //二进制的值不一定是合法的UTF-8
+					builder.addString(name + SUFFIX_COERCED, Bytes.toStringBinary(v, offset, length));
+				}
+				table.coerced.incrementAndGet();
+			} else {
+				table.skipped.incrementAndGet();
+			}
+			if (log.isDebugEnabled()) {
+				log.debug("invalid value of " + table.name + ":" + name + "," + invalid + ":" + e.getMessage());
+			}
+		}
+
+		/**
+		 * 值是不是这个字段的类型,不是时返回错误信息,否则返回null
+		 */
+		String validate(byte[] v, int offset, int length) {
+			try {
+				switch (type) {
+				case SolrRecord.T_STRING:
+					break;
+				case SolrRecord.T_INT:
+					intValue(v, offset, length);
+					break;
+				case SolrRecord.T_LONG:
+					longValue(v, offset, length);
+					break;
+				case SolrRecord.T_FLOAT:
+					floatValue(v, offset, length);
+					break;
+				case SolrRecord.T_DOUBLE:
+					doubleValue(v, offset, length);
+					break;
+				default:
+					booleanValue(v, offset, length);
+				}
+				return null;
+			} catch (IllegalArgumentException e) {
+				return e.getMessage();
+			} catch (IndexOutOfBoundsException e) {
+				return e.toString();
+			}
+		}
+
+		private int intValue(byte[] v, int offset, int length) {
+			if (encoding == ENCODING_STRING) {
+				return SolrNumbers.parseInt(v, offset, length);
+			} else if (encoding == ENCODING_BYTES) {
+				return SolrNumbers.toInt(v, offset, length);
+			}
+			long l = SolrNumbers.orderedLong(v, offset, length);
+			if (l < Integer.MIN_VALUE || l > Integer.MAX_VALUE) {
+				throw new NumberFormatException("value out of int range:" + l);
+			}
+			return (int) l;
+		}
+
+		private long longValue(byte[] v, int offset, int length) {
+			if (encoding == ENCODING_STRING) {
+				return SolrNumbers.parseLong(v, offset, length);
+			} else if (encoding == ENCODING_BYTES) {
+				return SolrNumbers.toLong(v, offset, length);
+			}
+			return SolrNumbers.orderedLong(v, offset, length);
+		}
+
+		private float floatValue(byte[] v, int offset, int length) {
+			if (encoding == ENCODING_STRING) {
+				return SolrNumbers.parseFloat(v, offset, length);
+			} else if (encoding == ENCODING_BYTES) {
+				return SolrNumbers.toFloat(v, offset, length);
+			}
+			return (float) SolrNumbers.orderedDouble(v, offset, length);
+		}
+
+		private double doubleValue(byte[] v, int offset, int length) {
+			if (encoding == ENCODING_STRING) {
+				return SolrNumbers.parseDouble(v, offset, length);
+			} else if (encoding == ENCODING_BYTES) {
+				return SolrNumbers.toDouble(v, offset, length);
+			}
+			return SolrNumbers.orderedDouble(v, offset, length);
+		}
+
+		private boolean booleanValue(byte[] v, int offset, int length) {
+			if (encoding == ENCODING_STRING) {
+				return SolrNumbers.parseBoolean(v, offset, length);
+			}
+			return SolrNumbers.toBoolean(v, offset, length);
+		}
+
+		@Override
+		public String toString() {
+			return name + ":" + type + (encoding == ENCODING_STRING ? "" : "@" + encoding);
+		}
+	}
+
+	private static final Field NONE = new Field(null, -1, ENCODING_STRING, INVALID_SKIP, null); //不索引的列
+
+	/**
+	 * 缓存的key,查找时直接引用cell里的数组,放进缓存时才复制
+	 */
+	private static final class ColumnKey {
+		final byte[] family;
+		final int familyOffset;
+		final int familyLength;
+		final byte[] qualifier;
+		final int qualifierOffset;
+		final int qualifierLength;
+		final int hash;
+
+		ColumnKey(byte[] family, int familyOffset, int familyLength, byte[] qualifier, int qualifierOffset,
+		    int qualifierLength) {
+			this.family = family;
+			this.familyOffset = familyOffset;
+			this.familyLength = familyLength;
+			this.qualifier = qualifier;
+			this.qualifierOffset = qualifierOffset;
+			this.qualifierLength = qualifierLength;
+			this.hash = Bytes.hashCode(family, familyOffset, familyLength) * 31
+			    + Bytes.hashCode(qualifier, qualifierOffset, qualifierLength);
+		}
+
+		ColumnKey(byte[] family, byte[] qualifier) {
+			this(family, 0, family.length, qualifier, 0, qualifier.length);
+		}
+
+		ColumnKey copy() {
+			return new ColumnKey(copyOf(family, familyOffset, familyLength), 0, familyLength, copyOf(qualifier,
+			    qualifierOffset, qualifierLength), 0, qualifierLength);
+		}
+
+		private static byte[] copyOf(byte[] b, int offset, int length) {
+			byte[] result = new byte[length];
+			System.arraycopy(b, offset, result, 0, length);
+			return result;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof ColumnKey)) {
+				return false;
+			}
+			ColumnKey o = (ColumnKey) obj;
+			return hash == o.hash
+			    && Bytes.equals(qualifier, qualifierOffset, qualifierLength, o.qualifier, o.qualifierOffset, o.qualifierLength)
+			    && Bytes.equals(family, familyOffset, familyLength, o.family, o.familyOffset, o.familyLength);
+		}
+	}
+
+	/**
+	 * 一个表的映射
+	 */
+	private static class TableMapping {
+		final String name;
+		final Map<ColumnKey, Field> explicit; //明确配置的映射,可能为空
+		final ConcurrentHashMap<ColumnKey, Field> cache = new ConcurrentHashMap<ColumnKey, Field>();
+		final AtomicLong skipped = new AtomicLong(); //丢掉的无效值
+		final AtomicLong coerced = new AtomicLong(); //按字符串索引的无效值
+		final AtomicLong rejected = new AtomicLong(); //因为无效值拒绝的Put
+
+		TableMapping(String name, Map<ColumnKey, Field> explicit) {
+			this.name = name;
+			if (explicit == null) {
+				this.explicit = java.util.Collections.<ColumnKey, Field> emptyMap();
+				return;
+			}
+			this.explicit = new java.util.HashMap<ColumnKey, Field>(explicit.size());
+			for (Map.Entry<ColumnKey, Field> entry : explicit.entrySet()) { //换成在这个表上计数的Field
+				Field field = entry.getValue();
+				this.explicit.put(entry.getKey(), field == NONE ? NONE : new Field(field.name, field.type, field.encoding,
+				    field.invalid, this));
+			}
+		}
+	}
+
+	private final Map<String, Map<ColumnKey, Field>> _explicit; //表名到明确映射
+	private final String[] _invalid; //按类型(SolrRecord.T_*)的无效值处理
+	private final boolean _rejects; //有没有reject的类型,没有时不用在prePut里检查
+	private final ConcurrentHashMap<String, TableMapping> _tables = new ConcurrentHashMap<String, TableMapping>();
+
+	private SolrFieldMapping(Map<String, Map<ColumnKey, Field>> explicit, String[] invalid) {
+		_explicit = explicit;
+		_invalid = invalid;
+		boolean rejects = false;
+		for (String policy : invalid) {
+			rejects = rejects || INVALID_REJECT.equals(policy);
+		}
+		_rejects = rejects;
+	}
+
+	/**
+	 * 从hbase.solr.mapping.${TableName}读取明确的映射,从hbase.solr.invalidValue[.${type}]读取无效值的处理
+	 */
+	static SolrFieldMapping load(org.apache.hadoop.conf.Configuration conf) {
+		String[] invalid = new String[SolrRecord.T_TRUE + 1];
+		String defaultPolicy = invalidPolicy(conf.get(SolrRegionObserver.HBASE_SOLR_INVALIDVALUE, INVALID_SKIP));
+		String[] typeNames = { "int", "long", "float", "double", "boolean" };
+		for (String typeName : typeNames) {
+			invalid[typeOf(typeName)] = invalidPolicy(conf.get(SolrRegionObserver.HBASE_SOLR_INVALIDVALUE + "." + typeName,
+			    defaultPolicy));
+		}
+		invalid[SolrRecord.T_STRING] = INVALID_SKIP; //字符串总是有效的
+
+		Map<String, Map<ColumnKey, Field>> explicit = new java.util.HashMap<String, Map<ColumnKey, Field>>();
+		for (Map.Entry<String, String> entry : conf) {
+			if (!entry.getKey().startsWith(PREFIX_MAPPING)) {
+				continue;
+			}
+			String tableName = entry.getKey().substring(PREFIX_MAPPING.length());
+			explicit.put(tableName, parse(tableName, conf.get(entry.getKey()), invalid));
+		}
+		return new SolrFieldMapping(explicit, invalid);
+	}
+
+	private static String invalidPolicy(String policy) {
+		if (policy.equalsIgnoreCase(INVALID_SKIP)) {
+			return INVALID_SKIP;
+		} else if (policy.equalsIgnoreCase(INVALID_STRING)) {
+			return INVALID_STRING;
+		} else if (policy.equalsIgnoreCase(INVALID_REJECT)) {
+			return INVALID_REJECT;
+		}
+		throw new IllegalArgumentException("unknown invalid value policy:" + policy);
+	}
+
+	private static Map<ColumnKey, Field> parse(String tableName, String spec, String[] invalid) {
+		Map<ColumnKey, Field> fields = new java.util.HashMap<ColumnKey, Field>();
+		for (String item : spec.split(",")) {
+			item = item.trim();
+			if (item.length() == 0) {
+				continue;
+			}
+			int colon = item.indexOf(':');
+			int eq = item.lastIndexOf('=');
+			if (colon <= 0 || eq < colon) {
+				throw new IllegalArgumentException("bad field mapping of table " + tableName + ":" + item);
+			}
+			String column = item.substring(0, eq).trim();
+			String typeSpec = item.substring(eq + 1).trim();
+			String solrName = column.substring(0, colon) + SolrRegionObserver.F_SEPARATOR + column.substring(colon + 1);
+			int idx = typeSpec.indexOf(':');
+			if (idx > 0) {
+				solrName = typeSpec.substring(idx + 1).trim();
+				typeSpec = typeSpec.substring(0, idx).trim();
+			}
+
+			int encoding = ENCODING_STRING;
+			idx = typeSpec.indexOf('@');
+			if (idx > 0) {
+				encoding = encodingOf(typeSpec.substring(idx + 1).trim());
+				typeSpec = typeSpec.substring(0, idx).trim();
+			}
+
+			int type = typeOf(typeSpec);
+			if (type == -2 || encoding == -1 || (encoding != ENCODING_STRING && type == SolrRecord.T_STRING)) {
+				throw new IllegalArgumentException("bad field type of table " + tableName + ":" + item);
+			}
+			ColumnKey key = new ColumnKey(Bytes.toBytes(column.substring(0, colon)), Bytes.toBytes(column.substring(colon + 1)));
+			fields.put(key, type == -1 ? NONE : new Field(solrName, type, encoding, invalid[type], null));
+		}
+		return fields;
+	}
+
+	/**
+	 * 类型名对应的类型,none返回-1,不认识的返回-2
+	 */
+	private static int typeOf(String typeName) {
+		if (typeName.equalsIgnoreCase("string") || typeName.equalsIgnoreCase("text") || typeName.equalsIgnoreCase("date")) {
+			return SolrRecord.T_STRING;
+		} else if (typeName.equalsIgnoreCase("int")) {
+			return SolrRecord.T_INT;
+		} else if (typeName.equalsIgnoreCase("long")) {
+			return SolrRecord.T_LONG;
+		} else if (typeName.equalsIgnoreCase("float")) {
+			return SolrRecord.T_FLOAT;
+		} else if (typeName.equalsIgnoreCase("double")) {
+			return SolrRecord.T_DOUBLE;
+		} else if (typeName.equalsIgnoreCase("boolean")) {
+			return SolrRecord.T_TRUE;
+		} else if (typeName.equalsIgnoreCase("none")) {
+			return -1;
+		}
+		return -2;
+	}
+
+	/**
+	 * 编码名对应的编码,不认识的返回-1
+	 */
+	private static int encodingOf(String encodingName) {
+		if (encodingName.equalsIgnoreCase("string")) {
+			return ENCODING_STRING;
+		} else if (encodingName.equalsIgnoreCase("bytes")) {
+			return ENCODING_BYTES;
+		} else if (encodingName.equalsIgnoreCase("ordered")) {
+			return ENCODING_ORDERED;
+		}
+		return -1;
+	}
+
+	/**
+	 * 按qualifier的后缀(直接比较原始字节)决定类型,不是需要的类型返回-1
+	 */
+	private static int typeOfSuffix(byte[] q, int offset, int length) {
+		if (length < 2) {
+			return -1;
+		}
+		int end = offset + length;
+		if (q[end - 2] == '_') { //两个字符的后缀
+			switch (q[end - 1]) {
+			case 's': //string
+			case 't': //text_general
+				return SolrRecord.T_STRING;
+			case 'i': //int
+				return SolrRecord.T_INT;
+			case 'l': //long
+				return SolrRecord.T_LONG;
+			case 'f': //float
+				return SolrRecord.T_FLOAT;
+			case 'd': //double
+				return SolrRecord.T_DOUBLE;
+			case 'b': //boolean
+				return SolrRecord.T_TRUE;
+			default:
+				return -1;
+			}
+		}
+		if (length >= 3 && q[end - 3] == '_' && q[end - 2] == 'd' && q[end - 1] == 't') { //date
+			return SolrRecord.T_STRING;
+		}
+		return -1;
+	}
+
+	/**
+	 * 返回cell所在列对应的Solr字段,不需要索引时返回null
+	 */
+	Field getField(String tableName, Cell cell) {
+		TableMapping table = _tables.get(tableName);
+		if (table == null) {
+			table = new TableMapping(tableName, _explicit.get(tableName));
+			TableMapping old = _tables.putIfAbsent(tableName, table);
+			if (old != null) {
+				table = old;
+			}
+		}
+
+		ColumnKey key = new ColumnKey(cell.getFamilyArray(), cell.getFamilyOffset(), cell.getFamilyLength(),
+		    cell.getQualifierArray(), cell.getQualifierOffset(), cell.getQualifierLength());
+		Field field = table.cache.get(key);
+		if (field == null) {
+			field = resolve(table, key);
+			if (table.cache.size() < MAX_CACHED_COLUMNS) {
+				table.cache.put(key.copy(), field);
+			}
+		}
+		return field == NONE ? null : field;
+	}
+
+	private Field resolve(TableMapping table, ColumnKey key) {
+		if (!table.explicit.isEmpty()) {
+			Field field = table.explicit.get(key);
+			if (field != null) {
+				return field;
+			}
+		}
+
+		int type = typeOfSuffix(key.qualifier, key.qualifierOffset, key.qualifierLength);
+		if (type == -1) { //不是需要的类型,不生成字符串
+			return NONE;
+		}
+		return new Field(Bytes.toString(key.family, key.familyOffset, key.familyLength) + SolrRegionObserver.F_SEPARATOR
+		    + Bytes.toString(key.qualifier, key.qualifierOffset, key.qualifierLength), type, ENCODING_STRING, _invalid[type],
+		    table);
+	}
+
+	/**
+	 * 检查Put里reject类型的字段,有无效值时返回错误信息,否则返回null
+	 */
+	String validate(String tableName, Put put) {
+		if (!_rejects) {
+			return null;
+		}
+		for (List<Cell> cells : put.getFamilyCellMap().values()) {
+			for (Cell cell : cells) {
+				Field field = getField(tableName, cell);
+				if (field == null || !INVALID_REJECT.equals(field.invalid)) {
+					continue;
+				}
+				String error = field.validate(cell.getValueArray(), cell.getValueOffset(), cell.getValueLength());
+				if (error != null) {
+					field.table.rejected.incrementAndGet();
+					return "invalid value of " + tableName + ":" + field.name + ":" + error;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 有无效值的表的计数
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (TableMapping table : _tables.values()) {
+			long skipped = table.skipped.get();
+			long coerced = table.coerced.get();
+			long rejected = table.rejected.get();
+			if (skipped == 0 && coerced == 0 && rejected == 0) {
+				continue;
+			}
+			if (sb.length() > 1) {
+				sb.append(',');
+			}
+			sb.append(table.name).append(":{skipped:").append(skipped).append(",coerced:").append(coerced)
+			    .append(",rejected:").append(rejected).append('}');
+		}
+		return sb.append('}').toString();
+	}
+}
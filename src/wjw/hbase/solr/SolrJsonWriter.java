@@ -0,0 +1,293 @@
+package wjw.hbase.solr;
+
+/**
+ * 直接把JSON写成UTF-8字节的流式写入器,内部的字节缓冲区可以reset()后重复使用,不是线程安全的.
+ */
+class SolrJsonWriter {
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+	private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+	private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+	private static final byte[] SET = { '{', '"', 's', 'e', 't', '"', ':' };
+
+	private byte[] _buf;
+	private int _count;
+
+	private boolean[] _firsts = new boolean[16]; //每一层是否还没有写过元素
+	private int _depth = 0;
+	private boolean _afterName = false; //刚写完字段名,下一个值前面不用逗号
+
+	public SolrJsonWriter() {
+		this(1024);
+	}
+
+	public SolrJsonWriter(int size) {
+		_buf = new byte[size];
+	}
+
+	public SolrJsonWriter reset() {
+		_count = 0;
+		_depth = 0;
+		_afterName = false;
+		return this;
+	}
+
+	/**
+	 * 内部缓冲区,有效数据是[0,size())
+	 */
+	public byte[] getBuffer() {
+		return _buf;
+	}
+
+	public int size() {
+		return _count;
+	}
+
+	public byte[] toByteArray() {
+		byte[] result = new byte[_count];
+		System.arraycopy(_buf, 0, result, 0, _count);
+		return result;
+	}
+
+	public SolrJsonWriter startObject() {
+		beforeValue();
+		write('{');
+		push();
+		return this;
+	}
+
+	public SolrJsonWriter endObject() {
+		_depth--;
+		write('}');
+		return this;
+	}
+
+	public SolrJsonWriter startArray() {
+		beforeValue();
+		write('[');
+		push();
+		return this;
+	}
+
+	public SolrJsonWriter endArray() {
+		_depth--;
+		write(']');
+		return this;
+	}
+
+	public SolrJsonWriter name(String name) {
+		beforeValue();
+		writeString(name);
+		write(':');
+		_afterName = true;
+		return this;
+	}
+
+	public SolrJsonWriter value(String value) {
+		beforeValue();
+		if (value == null) {
+			write(NULL, 0, NULL.length);
+		} else {
+			writeString(value);
+		}
+		return this;
+	}
+
+	public SolrJsonWriter value(long value) {
+		beforeValue();
+		writeAscii(Long.toString(value));
+		return this;
+	}
+
+	public SolrJsonWriter value(double value) {
+		beforeValue();
+		if (Double.isNaN(value) || Double.isInfinite(value)) { //JSON里没有NaN和Infinity,按字符串写
+			writeString(Double.toString(value));
+		} else {
+			writeAscii(Double.toString(value));
+		}
+		return this;
+	}
+
+	public SolrJsonWriter value(float value) {
+		beforeValue();
+		if (Float.isNaN(value) || Float.isInfinite(value)) {
+			writeString(Float.toString(value));
+		} else {
+			writeAscii(Float.toString(value));
+		}
+		return this;
+	}
+
+	public SolrJsonWriter value(boolean value) {
+		beforeValue();
+		if (value) {
+			write(TRUE, 0, TRUE.length);
+		} else {
+			write(FALSE, 0, FALSE.length);
+		}
+		return this;
+	}
+
+	/**
+	 * 写入已经编码好的JSON片段
+	 */
+	public SolrJsonWriter rawValue(byte[] json, int offset, int length) {
+		beforeValue();
+		write(json, offset, length);
+		return this;
+	}
+
+	/**
+	 * 写入Solr原子更新的字段: "name":{"set":value}
+	 */
+	public SolrJsonWriter set(String name, String value) {
+		name(name);
+		write(SET, 0, SET.length);
+		_afterName = false;
+		if (value == null) {
+			write(NULL, 0, NULL.length);
+		} else {
+			writeString(value);
+		}
+		write('}');
+		return this;
+	}
+
+	public SolrJsonWriter set(String name, long value) {
+		name(name);
+		write(SET, 0, SET.length);
+		_afterName = true;
+		value(value);
+		write('}');
+		return this;
+	}
+
+	public SolrJsonWriter set(String name, double value) {
+		name(name);
+		write(SET, 0, SET.length);
+		_afterName = true;
+		value(value);
+		write('}');
+		return this;
+	}
+
+	public SolrJsonWriter set(String name, float value) {
+		name(name);
+		write(SET, 0, SET.length);
+		_afterName = true;
+		value(value);
+		write('}');
+		return this;
+	}
+
+	public SolrJsonWriter set(String name, boolean value) {
+		name(name);
+		write(SET, 0, SET.length);
+		_afterName = true;
+		value(value);
+		write('}');
+		return this;
+	}
+
+	private void push() {
+		if (_depth == _firsts.length) {
+			boolean[] newFirsts = new boolean[_firsts.length * 2];
+			System.arraycopy(_firsts, 0, newFirsts, 0, _firsts.length);
+			_firsts = newFirsts;
+		}
+		_firsts[_depth++] = true;
+	}
+
+	private void beforeValue() {
+		if (_afterName) {
+			_afterName = false;
+			return;
+		}
+		if (_depth > 0) {
+			if (_firsts[_depth - 1]) {
+				_firsts[_depth - 1] = false;
+			} else {
+				write(',');
+			}
+		}
+	}
+
+	private void writeAscii(String s) {
+		int len = s.length();
+		ensure(len);
+		for (int i = 0; i < len; i++) {
+			_buf[_count++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void writeString(String s) {
+		int len = s.length();
+		ensure(len * 3 + 2);
+		_buf[_count++] = '"';
+		for (int i = 0; i < len; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x20 && c < 0x80 && c != '"' && c != '\\') {
+				_buf[_count++] = (byte) c;
+			} else if (c == '"' || c == '\\') {
+				ensure(2 + (len - i) * 3);
+				_buf[_count++] = '\\';
+				_buf[_count++] = (byte) c;
+			} else if (c < 0x20) {
+				ensure(6 + (len - i) * 3);
+				if (c == '\n') {
+					_buf[_count++] = '\\';
+					_buf[_count++] = 'n';
+				} else if (c == '\r') {
+					_buf[_count++] = '\\';
+					_buf[_count++] = 'r';
+				} else if (c == '\t') {
+					_buf[_count++] = '\\';
+					_buf[_count++] = 't';
+				} else {
+					_buf[_count++] = '\\';
+					_buf[_count++] = 'u';
+					_buf[_count++] = '0';
+					_buf[_count++] = '0';
+					_buf[_count++] = HEX[c >> 4];
+					_buf[_count++] = HEX[c & 0xF];
+				}
+			} else if (c < 0x800) {
+				_buf[_count++] = (byte) (0xC0 | (c >> 6));
+				_buf[_count++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				_buf[_count++] = (byte) (0xF0 | (cp >> 18));
+				_buf[_count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+				_buf[_count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+				_buf[_count++] = (byte) (0x80 | (cp & 0x3F));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) { //不成对的代理字符,和String.getBytes()一样写成'?'
+				_buf[_count++] = '?';
+			} else {
+				_buf[_count++] = (byte) (0xE0 | (c >> 12));
+				_buf[_count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				_buf[_count++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		_buf[_count++] = '"';
+	}
+
+	private void write(int b) {
+		ensure(1);
+		_buf[_count++] = (byte) b;
+	}
+
+	private void write(byte[] b, int offset, int length) {
+		ensure(length);
+		System.arraycopy(b, offset, _buf, _count, length);
+		_count += length;
+	}
+
+	private void ensure(int more) {
+		if (_count + more > _buf.length) {
+			byte[] newBuf = new byte[Math.max(_buf.length * 2, _count + more)];
+			System.arraycopy(_buf, 0, newBuf, 0, _count);
+			_buf = newBuf;
+		}
+	}
+}
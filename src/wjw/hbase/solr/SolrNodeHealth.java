@@ -0,0 +1,203 @@
+package wjw.hbase.solr;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * 每个Solr节点(update URL)的熔断器: closed(正常) -> open(连续失败或者错误率太高,暂时不再使用) ->
+ * half-open(过了open的时间,只放一个请求去试探) -> 成功后closed,失败后再次open并且open的时间加倍.
+ * 试探请求超过probeMillis还没有报告结果时当作失败,不会因为丢了一次报告就一直不用这个节点.
+ * 另外提供重试之间带随机抖动的指数退避时间.
+ */
+class SolrNodeHealth {
+	private static Logger log = Logger.getLogger(SolrNodeHealth.class);
+
+	static final int CLOSED = 0;
+	static final int OPEN = 1;
+	static final int HALF_OPEN = 2;
+
+	private static final double ERROR_RATE_ALPHA = 0.2; //错误率的指数移动平均系数
+	private static final double MAX_ERROR_RATE = 0.5; //错误率超过这个值时open
+	private static final int MIN_SAMPLES = 10; //按错误率判断前至少需要的请求数
+
+	private static class Node {
+		volatile int state = CLOSED; //allow()不加锁先看一下
+		int failures; //连续失败次数
+		double errorRate; //错误率的指数移动平均
+		int samples;
+		int opens; //连续open的次数,决定open的时间
+		long openUntil;
+		boolean probing; //half-open时是否已经放出了试探请求
+		long probeUntil; //试探请求最晚的报告时间
+
+		@Override
+		public String toString() {
+			return (state == CLOSED ? "closed" : state == OPEN ? "open" : "half-open") + ",failures:" + failures
+			    + ",errorRate:" + ((int) (errorRate * 100)) + "%";
+		}
+	}
+
+	private final int _failureThreshold;
+	private final long _openMillis;
+	private final long _maxOpenMillis;
+	private final long _backoffMillis;
+	private final long _probeMillis;
+	private final ConcurrentHashMap<String, Node> _nodes = new ConcurrentHashMap<String, Node>();
+	private final Random _random = new Random();
+
+	/**
+	 * @param failureThreshold
+	 *          - 连续失败多少次后open
+	 * @param openMillis
+	 *          - 第一次open的时间(毫秒),之后每次加倍
+	 * @param maxOpenMillis
+	 *          - 最长的open时间(毫秒)
+	 * @param backoffMillis
+	 *          - 重试的基础退避时间(毫秒)
+	 * @param probeMillis
+	 *          - 试探请求最长的时间(毫秒),一般是连接超时加读超时
+	 */
+	SolrNodeHealth(int failureThreshold, long openMillis, long maxOpenMillis, long backoffMillis, long probeMillis) {
+		_failureThreshold = Math.max(1, failureThreshold);
+		_openMillis = Math.max(1, openMillis);
+		_maxOpenMillis = Math.max(_openMillis, maxOpenMillis);
+		_backoffMillis = Math.max(0, backoffMillis);
+		_probeMillis = Math.max(1, probeMillis);
+	}
+
+	private Node node(String url) {
+		Node node = _nodes.get(url);
+		if (node == null) {
+			node = new Node();
+			Node old = _nodes.putIfAbsent(url, node);
+			if (old != null) {
+				node = old;
+			}
+		}
+		return node;
+	}
+
+	/**
+	 * 现在能不能向url发送请求.half-open时只有第一个调用者得到true,它必须调用success()或者failure()报告结果
+	 */
+	boolean allow(String url) {
+		Node node = node(url);
+		if (node.state == CLOSED) { //正常时不用加锁
+			return true;
+		}
+		synchronized (node) {
+			if (node.state == CLOSED) {
+				return true;
+			}
+			long now = System.currentTimeMillis();
+			if (node.state == OPEN) {
+				if (now < node.openUntil) {
+					return false;
+				}
+				node.state = HALF_OPEN;
+				node.probing = false;
+			}
+			if (node.probing) {
+				if (now >= node.probeUntil) { //试探请求的结果丢了,当作失败
+					log.warn("Solr node probe timed out:" + url);
+					open(node, url);
+				}
+				return false;
+			}
+			node.probing = true;
+			node.probeUntil = now + _probeMillis;
+			return true;
+		}
+	}
+
+	/**
+	 * 节点正常应答了(即使Solr报告了请求里的错误)
+	 */
+	void success(String url) {
+		Node node = node(url);
+		synchronized (node) {
+			if (node.state != CLOSED) {
+				log.info("Solr node recovered:" + url);
+			}
+			node.state = CLOSED;
+			node.failures = 0;
+			node.opens = 0;
+			node.probing = false;
+			sample(node, 0);
+		}
+	}
+
+	/**
+	 * 连接失败,超时或者HTTP错误
+	 */
+	void failure(String url) {
+		Node node = node(url);
+		synchronized (node) {
+			node.failures++;
+			sample(node, 1);
+			if (node.state == HALF_OPEN || node.failures >= _failureThreshold
+			    || (node.samples >= MIN_SAMPLES && node.errorRate > MAX_ERROR_RATE)) {
+				open(node, url);
+			}
+		}
+	}
+
+	/**
+	 * 把节点置为open,open的时间加倍.调用者拿着node的锁
+	 */
+	private void open(Node node, String url) {
+		long openMillis = Math.min(_maxOpenMillis, _openMillis << Math.min(node.opens, 20));
+		node.opens++;
+		node.state = OPEN;
+		node.probing = false;
+		node.openUntil = System.currentTimeMillis() + openMillis / 2 + nextLong(openMillis / 2 + 1); //加上抖动,避免所有RegionServer同时试探
+		log.warn("Solr node ejected for " + openMillis + "ms:" + url + " {" + node + "}");
+	}
+
+	private static void sample(Node node, int error) {
+		node.errorRate = node.samples == 0 ? error : node.errorRate + ERROR_RATE_ALPHA * (error - node.errorRate);
+		if (node.samples < MIN_SAMPLES) {
+			node.samples++;
+		}
+	}
+
+	/**
+	 * 第attempt次(从0开始)失败后重试前等待的时间: [0, backoffMillis * 2^attempt) 之间的随机值,最多openMillis
+	 */
+	long backoff(int attempt) {
+		if (_backoffMillis == 0) {
+			return 0;
+		}
+		long max = Math.min(_openMillis, _backoffMillis << Math.min(attempt, 20));
+		return nextLong(max);
+	}
+
+	private long nextLong(long bound) {
+		if (bound <= 0) {
+			return 0;
+		}
+		synchronized (_random) {
+			return (long) (_random.nextDouble() * bound);
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("{");
+		for (java.util.Map.Entry<String, Node> entry : _nodes.entrySet()) {
+			Node node = entry.getValue();
+			synchronized (node) {
+				if (node.state == CLOSED && node.failures == 0) {
+					continue;
+				}
+				if (sb.length() > 1) {
+					sb.append(',');
+				}
+				sb.append(entry.getKey()).append(":{").append(node).append('}');
+			}
+		}
+		return sb.append('}').toString();
+	}
+}
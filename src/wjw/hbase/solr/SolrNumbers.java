@@ -0,0 +1,245 @@
+package wjw.hbase.solr;
+
+import java.io.UnsupportedEncodingException;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.util.OrderedBytes;
+import org.apache.hadoop.hbase.util.SimplePositionedByteRange;
+
+/**
+ * 直接从cell的字节范围解析数值,不生成String和包装对象.
+ * <p>
+ * ASCII文本的结果和Integer.parseInt,Long.parseLong,Float.parseFloat,Double.parseDouble,Boolean.parseBoolean一样;
+ * 浮点数只处理不超过15位有效数字,没有指数的常见写法,其他情况交给JDK解析.
+ * 也可以解码HBase的二进制编码: Bytes.toBytes(int/long/float/double/boolean) 和 OrderedBytes.
+ */
+final class SolrNumbers {
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13,
+	    1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 }; //可以精确表示的10的幂
+	private static final float[] POW10F = { 1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f };
+
+	private static final int MAX_FAST_DIGITS = 15; //double的快速路径允许的最大有效数字位数(小于2^53)
+	private static final int MAX_FAST_DIGITS_FLOAT = 7; //float的快速路径允许的最大有效数字位数(小于2^24)
+
+	private SolrNumbers() {
+	}
+
+	static int parseInt(byte[] b, int offset, int length) {
+		long v = parseLong(b, offset, length);
+		if (v < Integer.MIN_VALUE || v > Integer.MAX_VALUE) {
+			throw numberFormat(b, offset, length);
+		}
+		return (int) v;
+	}
+
+	static long parseLong(byte[] b, int offset, int length) {
+		if (length == 0) {
+			throw numberFormat(b, offset, length);
+		}
+		int i = offset;
+		int end = offset + length;
+		boolean negative = false;
+		if (b[i] == '-' || b[i] == '+') {
+			negative = b[i] == '-';
+			if (++i == end) {
+				throw numberFormat(b, offset, length);
+			}
+		}
+
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long multmin = limit / 10;
+		long result = 0; //和JDK一样按负数累加,才能表示Long.MIN_VALUE
+		for (; i < end; i++) {
+			int digit = b[i] - '0';
+			if (digit < 0 || digit > 9 || result < multmin) {
+				throw numberFormat(b, offset, length);
+			}
+			result *= 10;
+			if (result < limit + digit) {
+				throw numberFormat(b, offset, length);
+			}
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+
+	static double parseDouble(byte[] b, int offset, int length) {
+		int end = offset + length;
+		int i = offset;
+		boolean negative = false;
+		if (i < end && (b[i] == '-' || b[i] == '+')) {
+			negative = b[i] == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int fraction = -1; //小数点后的位数,-1表示没有小数点
+		for (; i < end; i++) {
+			int c = b[i];
+			if (c >= '0' && c <= '9') {
+				if (++digits > MAX_FAST_DIGITS) {
+					return slowDouble(b, offset, length);
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				if (fraction >= 0) {
+					fraction++;
+				}
+			} else if (c == '.' && fraction < 0) {
+				fraction = 0;
+			} else { //指数,NaN,Infinity,空格等
+				return slowDouble(b, offset, length);
+			}
+		}
+		if (digits == 0) {
+			return slowDouble(b, offset, length);
+		}
+
+		double v = fraction > 0 ? mantissa / POW10[fraction] : mantissa; //两个都是精确值,结果是正确舍入的
+		return negative ? -v : v;
+	}
+
+	static float parseFloat(byte[] b, int offset, int length) {
+		int end = offset + length;
+		int i = offset;
+		boolean negative = false;
+		if (i < end && (b[i] == '-' || b[i] == '+')) {
+			negative = b[i] == '-';
+			i++;
+		}
+
+		int mantissa = 0;
+		int digits = 0;
+		int fraction = -1;
+		for (; i < end; i++) {
+			int c = b[i];
+			if (c >= '0' && c <= '9') {
+				if (++digits > MAX_FAST_DIGITS_FLOAT) {
+					return slowFloat(b, offset, length);
+				}
+				mantissa = mantissa * 10 + (c - '0');
+				if (fraction >= 0) {
+					fraction++;
+				}
+			} else if (c == '.' && fraction < 0) {
+				fraction = 0;
+			} else {
+				return slowFloat(b, offset, length);
+			}
+		}
+		if (digits == 0 || fraction >= POW10F.length) {
+			return slowFloat(b, offset, length);
+		}
+
+		float v = fraction > 0 ? mantissa / POW10F[fraction] : mantissa;
+		return negative ? -v : v;
+	}
+
+	static boolean parseBoolean(byte[] b, int offset, int length) {
+		return length == 4 && (b[offset] | 0x20) == 't' && (b[offset + 1] | 0x20) == 'r' && (b[offset + 2] | 0x20) == 'u'
+		    && (b[offset + 3] | 0x20) == 'e';
+	}
+
+	/**
+	 * Bytes.toBytes(int)写入的值
+	 */
+	static int toInt(byte[] b, int offset, int length) {
+		checkLength(b, offset, length, Bytes.SIZEOF_INT);
+		return Bytes.toInt(b, offset, length);
+	}
+
+	/**
+	 * Bytes.toBytes(long)写入的值,也接受4个字节的int
+	 */
+	static long toLong(byte[] b, int offset, int length) {
+		if (length == Bytes.SIZEOF_INT) {
+			return Bytes.toInt(b, offset, length);
+		}
+		checkLength(b, offset, length, Bytes.SIZEOF_LONG);
+		return Bytes.toLong(b, offset, length);
+	}
+
+	/**
+	 * Bytes.toBytes(float)写入的值
+	 */
+	static float toFloat(byte[] b, int offset, int length) {
+		checkLength(b, offset, length, Bytes.SIZEOF_FLOAT);
+		return Bytes.toFloat(b, offset);
+	}
+
+	/**
+	 * Bytes.toBytes(double)写入的值,也接受4个字节的float
+	 */
+	static double toDouble(byte[] b, int offset, int length) {
+		if (length == Bytes.SIZEOF_FLOAT) {
+			return Bytes.toFloat(b, offset);
+		}
+		checkLength(b, offset, length, Bytes.SIZEOF_DOUBLE);
+		return Bytes.toDouble(b, offset);
+	}
+
+	/**
+	 * Bytes.toBytes(boolean)写入的值
+	 */
+	static boolean toBoolean(byte[] b, int offset, int length) {
+		checkLength(b, offset, length, 1);
+		return b[offset] != 0;
+	}
+
+	/**
+	 * OrderedBytes编码的整数: encodeInt32,encodeInt64 或者 encodeNumeric
+	 */
+	static long orderedLong(byte[] b, int offset, int length) {
+		SimplePositionedByteRange range = new SimplePositionedByteRange(b, offset, length);
+		if (OrderedBytes.isNumeric(range)) {
+			return OrderedBytes.decodeNumericAsLong(range);
+		}
+		if (length == 5) { //1个字节的头 + 4个字节
+			return OrderedBytes.decodeInt32(range);
+		}
+		checkLength(b, offset, length, 9);
+		return OrderedBytes.decodeInt64(range);
+	}
+
+	/**
+	 * OrderedBytes编码的浮点数: encodeFloat32,encodeFloat64 或者 encodeNumeric
+	 */
+	static double orderedDouble(byte[] b, int offset, int length) {
+		SimplePositionedByteRange range = new SimplePositionedByteRange(b, offset, length);
+		if (OrderedBytes.isNumeric(range)) {
+			return OrderedBytes.decodeNumericAsDouble(range);
+		}
+		if (length == 5) {
+			return OrderedBytes.decodeFloat32(range);
+		}
+		checkLength(b, offset, length, 9);
+		return OrderedBytes.decodeFloat64(range);
+	}
+
+	private static void checkLength(byte[] b, int offset, int length, int expected) {
+		if (length != expected) {
+			throw new NumberFormatException("expected " + expected + " bytes but was " + length + ":"
+			    + Bytes.toStringBinary(b, offset, length));
+		}
+	}
+
+	private static double slowDouble(byte[] b, int offset, int length) {
+		return Double.parseDouble(toString(b, offset, length));
+	}
+
+	private static float slowFloat(byte[] b, int offset, int length) {
+		return Float.parseFloat(toString(b, offset, length));
+	}
+
+	private static NumberFormatException numberFormat(byte[] b, int offset, int length) {
+		return new NumberFormatException("For input string: \"" + toString(b, offset, length) + "\"");
+	}
+
+	private static String toString(byte[] b, int offset, int length) {
+		try {
+			return new String(b, offset, length, SolrTools.UTF_8);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,491 @@
+package wjw.hbase.solr;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+import com.leansoft.bigqueue.BigArrayImpl;
+import com.leansoft.bigqueue.IBigArray;
+
+/**
+ * 一个更新队列分区: 自己的BigQueue,名字字典,取数据的线程和计数.同一行的数据总是进入同一个分区,保证先后顺序.
+ * 打开异步入队时,postPut只把记录放进内存里的环形缓冲区,由后台线程批量写入BigQueue.
+ * <p>
+ * 消费时先用next()读取(不移动队头),一批数据全部被Solr确认后才把持久化的队头(消费位置)移过去;
+ * 发送失败时,发送线程只重新发送没有成功的记录,全部成功后才确认这一批;取数据或者交给发送线程出错时才从队头重新读取,
+ * 失败的数据不会跑到同一行更新的数据后面.
+ * 磁盘格式和BigQueueImpl相同(BigArray加上front_index),原来的队列数据可以直接使用.
+ * <p>
+ * 另外在checkpoint里保存队头和积压的字节数,启动时直接读出来,不用扫描积压的数据;回收数据文件也不在启动时做.
+ */
+class SolrQueuePartition {
+	private static Logger log = Logger.getLogger(SolrQueuePartition.class);
+
+	static final String POLICY_BLOCK = "block"; //缓冲区满了时等待
+	static final String POLICY_SPILL = "spill"; //缓冲区满了时在调用线程上直接写BigQueue
+	static final String POLICY_DROP = "drop"; //缓冲区满了时丢弃并计数
+
+	private static final int PERSIST_BATCH = 1024; //后台线程每次从缓冲区取出的最大记录数
+
+	private static final String FRONT_INDEX_FOLDER = "front_index"; //和BigQueueImpl相同
+	private static final String FRONT_INDEX_FILE = "page-0.dat";
+	private static final String CHECKPOINT_FOLDER = "checkpoint";
+
+	private static final long CHECKPOINT_MAGIC = 0x534f4c5243503031L; //"SOLRCP01"
+	private static final int CHECKPOINT_SIZE = 48; //magic,front,frontBytes,head,headBytes,time
+	private static final long RECOVER_LIMIT = 100000; //checkpoint之后最多逐条补算这么多条记录的长度,再多就估算
+	private static final int RECOVER_SAMPLES = 1000; //估算积压字节数时抽样的记录数
+
+	/**
+	 * 一次取出的一批数据,被分给几个发送线程,都成功后才能把队头移到end
+	 */
+	static final class Round {
+		final long end; //这批数据之后的下一个位置
+		final long endBytes; //end之前的累计字节数
+		int pending; //还没有完成的发送线程数
+		boolean failed;
+
+		Round(long end, long endBytes, int pending) {
+			this.end = end;
+			this.endBytes = endBytes;
+			this.pending = pending;
+		}
+	}
+
+	final int index;
+	final String name;
+
+	private final IBigArray _array;
+	private final RandomAccessFile _frontFile;
+	private final MappedByteBuffer _frontBuffer; //持久化的队头
+	private volatile long _front; //已经被Solr确认的位置
+	private long _readIndex; //下一个要读取的位置,只有取数据的线程使用
+	private final RandomAccessFile _checkpointFile;
+	private final MappedByteBuffer _checkpointBuffer; //持久化的队头和累计字节数
+	private final AtomicLong _headBytes = new AtomicLong(); //写入队列的累计字节数(压缩后),重启后接着计数
+	private volatile long _frontBytes; //被Solr确认的累计字节数
+	private long _readBytes; //读取到_readIndex为止的累计字节数,只有取数据的线程使用
+	private volatile boolean _bytesExact = true; //积压字节数是不是准确的,checkpoint丢失时是估算的
+	private final LinkedList<Round> _rounds = new LinkedList<Round>(); //正在发送的批次,按顺序
+	private final SolrDictionary _dict;
+	private final SolrCodec _codec;
+	final ScheduledExecutorService schedule = Executors.newSingleThreadScheduledExecutor(); //取数据发给Solr的线程
+
+	volatile boolean senderFailed = false; //有发送线程失败了,本轮先不要再取数据
+
+	private SolrRingBuffer _ring; //异步入队的缓冲区,为null时同步写BigQueue
+	private String _fullPolicy;
+	private Thread _persister; //把缓冲区里的记录写入BigQueue的线程
+	private volatile boolean _closed = false;
+	private final Object _persistLock = new Object(); //保证缓冲区里的记录按顺序写入BigQueue
+
+	final AtomicLong enqueued = new AtomicLong(); //入队的记录数
+	final AtomicLong enqueuedBytes = new AtomicLong(); //入队的字节数(压缩后)
+	final AtomicLong dequeued = new AtomicLong(); //读取的记录数
+	final AtomicLong retried = new AtomicLong(); //重新发送和从队头重新读取的记录数
+	final AtomicLong spilled = new AtomicLong(); //缓冲区满了在调用线程上直接写入的记录数
+	final AtomicLong dropped = new AtomicLong(); //缓冲区满了丢弃的记录数
+
+	/**
+	 * @param name
+	 *          - BigQueue的名字,字典文件是name.dict
+	 */
+	SolrQueuePartition(int index, String queueDir, String name, SolrCodec codec) throws IOException {
+		this.index = index;
+		this.name = name;
+		_codec = codec;
+		_dict = SolrDictionary.open(queueDir, name);
+		_array = new BigArrayImpl(queueDir, name, BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+
+		File frontDir = new File(((BigArrayImpl) _array).getArrayDirectory(), FRONT_INDEX_FOLDER);
+		frontDir.mkdirs();
+		_frontFile = new RandomAccessFile(new File(frontDir, FRONT_INDEX_FILE), "rw");
+		_frontBuffer = _frontFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+		_front = _frontBuffer.getLong(0);
+		if (_front != _array.getHeadIndex() && (_front < _array.getTailIndex() || _front > _array.getHeadIndex())) { //和BigQueueImpl一样,无效时从最早的数据开始
+			commit(_array.getTailIndex(), 0);
+		}
+		_readIndex = _front;
+
+		File checkpointDir = new File(((BigArrayImpl) _array).getArrayDirectory(), CHECKPOINT_FOLDER);
+		checkpointDir.mkdirs();
+		_checkpointFile = new RandomAccessFile(new File(checkpointDir, FRONT_INDEX_FILE), "rw");
+		_checkpointBuffer = _checkpointFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, CHECKPOINT_SIZE);
+		recover();
+		_readBytes = _frontBytes;
+		checkpoint();
+		log.info("open queue partition:" + this);
+	}
+
+	/**
+	 * 从checkpoint恢复累计字节数.正常关闭时checkpoint和队列一致;异常退出时只补算checkpoint之后的少量记录
+	 */
+	private void recover() {
+		long head = _array.getHeadIndex();
+		if (_checkpointBuffer.getLong(0) == CHECKPOINT_MAGIC) {
+			long cpFront = _checkpointBuffer.getLong(8);
+			long cpFrontBytes = _checkpointBuffer.getLong(16);
+			long cpHead = _checkpointBuffer.getLong(24);
+			long cpHeadBytes = _checkpointBuffer.getLong(32);
+			long headDelta = lengthBetween(cpHead, head);
+			long frontDelta = lengthBetween(cpFront, _front);
+			if (headDelta >= 0 && frontDelta >= 0) {
+				_headBytes.set(cpHeadBytes + headDelta);
+				_frontBytes = cpFrontBytes + frontDelta;
+				return;
+			}
+		}
+
+		//没有可用的checkpoint,从0开始计数.积压不多时逐条累加,否则抽样估算
+		_frontBytes = 0;
+		long backlog = lengthBetween(_front, head);
+		if (backlog < 0) {
+			backlog = estimateBetween(_front, head);
+			_bytesExact = false;
+			log.warn("checkpoint of queue partition is missing or stale, backlog bytes estimated:" + name);
+		}
+		_headBytes.set(backlog);
+	}
+
+	/**
+	 * 在from到to之间均匀抽样记录的长度,估算总长度
+	 */
+	private long estimateBetween(long from, long to) {
+		long count = to - from;
+		if (count <= 0) {
+			return 0;
+		}
+		long step = Math.max(1, count / RECOVER_SAMPLES);
+		long total = 0;
+		int samples = 0;
+		for (long i = from; i < to && samples < RECOVER_SAMPLES; i = i + step) {
+			try {
+				total = total + _array.getItemLength(i);
+				samples++;
+			} catch (IOException e) { //被删除了的记录不计入
+			} catch (IndexOutOfBoundsException e) {
+			}
+		}
+		return samples == 0 ? 0 : total / samples * count;
+	}
+
+	/**
+	 * from到to之间的记录的总长度,记录太多或者已经被删除时返回-1
+	 */
+	private long lengthBetween(long from, long to) {
+		if (from == to) {
+			return 0;
+		}
+		if (to < from || to - from > RECOVER_LIMIT) {
+			return -1;
+		}
+		long total = 0;
+		try {
+			for (long i = from; i < to; i++) {
+				total = total + _array.getItemLength(i);
+			}
+		} catch (IOException e) {
+			return -1;
+		} catch (IndexOutOfBoundsException e) {
+			return -1;
+		}
+		return total;
+	}
+
+	/**
+	 * 打开异步入队
+	 *
+	 * @param capacity
+	 *          - 缓冲区的容量(记录数)
+	 * @param fullPolicy
+	 *          - 缓冲区满了时的处理: block, spill 或者 drop
+	 */
+	void startAsync(int capacity, String fullPolicy) {
+		if (!fullPolicy.equalsIgnoreCase(POLICY_BLOCK) && !fullPolicy.equalsIgnoreCase(POLICY_SPILL)
+		    && !fullPolicy.equalsIgnoreCase(POLICY_DROP)) {
+			throw new IllegalArgumentException("unknown ring buffer full policy:" + fullPolicy);
+		}
+		_fullPolicy = fullPolicy;
+		_ring = new SolrRingBuffer(capacity);
+		_persister = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				List<byte[]> batch = new ArrayList<byte[]>(PERSIST_BATCH);
+				int idle = 0;
+				while (!_closed) {
+					try {
+						if (persist(batch) > 0) {
+							idle = 0;
+						} else if (++idle < 100) {
+							Thread.yield();
+						} else {
+							LockSupport.parkNanos(1000 * 1000L); //空闲时每毫秒看一次
+						}
+					} catch (Throwable t) {
+						log.error("persist ring buffer error:" + name, t);
+						LockSupport.parkNanos(100 * 1000 * 1000L);
+					}
+				}
+			}
+		}, "SolrRingPersister-" + name);
+		_persister.setDaemon(true);
+		_persister.start();
+	}
+
+	SolrDictionary getDictionary() {
+		return _dict;
+	}
+
+	void enqueue(byte[] data) throws IOException {
+		SolrRingBuffer ring = _ring;
+		if (ring == null || _closed) {
+			write(data);
+			return;
+		}
+
+		if (ring.offer(data)) {
+			LockSupport.unpark(_persister);
+			return;
+		}
+
+		if (_fullPolicy.equalsIgnoreCase(POLICY_DROP)) {
+			if (dropped.incrementAndGet() % 10000 == 1) {
+				log.warn("ring buffer full, dropped " + dropped.get() + " records:" + name);
+			}
+		} else if (_fullPolicy.equalsIgnoreCase(POLICY_SPILL)) {
+			synchronized (_persistLock) { //先把之前认领的记录都写进去,保证顺序
+				List<byte[]> batch = new ArrayList<byte[]>(PERSIST_BATCH);
+				long claimed = ring.claimed();
+				while (ring.consumed() < claimed) {
+					if (persist(batch) == 0) { //别的线程认领了还没有发布
+						Thread.yield();
+					}
+				}
+				write(data);
+			}
+			spilled.incrementAndGet();
+		} else {
+			while (!ring.offer(data)) {
+				if (_closed) {
+					write(data);
+					return;
+				}
+				LockSupport.unpark(_persister);
+				LockSupport.parkNanos(100 * 1000L);
+			}
+		}
+	}
+
+	/**
+	 * 把缓冲区里已经发布的记录写入BigQueue
+	 *
+	 * @return 写入的记录数
+	 */
+	private int persist(List<byte[]> batch) throws IOException {
+		int total = 0;
+		synchronized (_persistLock) {
+			while (_ring.drainTo(batch, PERSIST_BATCH) > 0) {
+				for (byte[] data : batch) {
+					write(data);
+				}
+				total = total + batch.size();
+				batch.clear();
+			}
+		}
+		return total;
+	}
+
+	private void write(byte[] data) throws IOException {
+		byte[] encoded = _codec.encode(data);
+		_array.append(encoded);
+		_headBytes.addAndGet(encoded.length);
+		enqueued.incrementAndGet();
+		enqueuedBytes.addAndGet(encoded.length);
+	}
+
+	/**
+	 * 读取下一条记录(不移动队头),没有更多数据时返回null.只能由取数据的线程调用
+	 */
+	byte[] next() throws IOException {
+		if (_readIndex == _array.getHeadIndex()) {
+			return null;
+		}
+		byte[] encoded = _array.get(_readIndex);
+		byte[] data = _codec.decode(encoded);
+		_readIndex++;
+		_readBytes = _readBytes + encoded.length;
+		dequeued.incrementAndGet();
+		return data;
+	}
+
+	/**
+	 * 登记到目前为止读取的数据为一批,分给了senders个发送线程
+	 */
+	Round addRound(int senders) throws IOException {
+		Round round = new Round(_readIndex, _readBytes, senders);
+		synchronized (_rounds) {
+			_rounds.add(round);
+			advance();
+		}
+		return round;
+	}
+
+	/**
+	 * 一个发送线程完成了round里自己的那部分
+	 */
+	void ack(Round round, boolean ok) throws IOException {
+		synchronized (_rounds) {
+			round.pending--;
+			if (!ok) {
+				round.failed = true;
+				senderFailed = true;
+			}
+			advance();
+		}
+	}
+
+	/**
+	 * 把队头移过最前面连续成功的批次
+	 */
+	private void advance() throws IOException {
+		while (!_rounds.isEmpty() && _rounds.getFirst().pending == 0 && !_rounds.getFirst().failed) {
+			Round round = _rounds.removeFirst();
+			commit(round.end, round.endBytes);
+		}
+	}
+
+	/**
+	 * 发送失败后,等所有批次都结束了再从队头重新读取.只能由取数据的线程调用
+	 * 
+	 * @return 还有批次在发送时返回false
+	 */
+	boolean rewind() {
+		synchronized (_rounds) {
+			for (Round round : _rounds) {
+				if (round.pending > 0) {
+					return false;
+				}
+			}
+			_rounds.clear();
+			retried.addAndGet(_readIndex - _front);
+			_readIndex = _front;
+			_readBytes = _frontBytes;
+			senderFailed = false;
+			return true;
+		}
+	}
+
+	private void commit(long index, long bytes) {
+		_frontBytes = bytes;
+		_front = index;
+		_frontBuffer.putLong(0, index);
+	}
+
+	/**
+	 * 把字典里的新名字,队头和累计字节数写进文件,由取数据的线程定期调用.写入的线程和这里不同步,字节数可能有几条记录的误差,
+	 * 积压为空时重新对齐
+	 */
+	void checkpoint() {
+		try {
+			_dict.flush(); //新名字写进字典,之后的记录使用编号
+		} catch (IOException e) {
+			log.error("can not flush dictionary:" + name, e);
+		}
+
+		long headBytes = _headBytes.get();
+		long head = _array.getHeadIndex();
+		long front;
+		long frontBytes;
+		synchronized (_rounds) {
+			front = _front;
+			frontBytes = _frontBytes;
+			if (front == head && _rounds.isEmpty() && frontBytes != headBytes) {
+				frontBytes = headBytes;
+				_frontBytes = headBytes;
+				if (_readIndex == front) {
+					_readBytes = headBytes;
+				}
+				_bytesExact = true;
+			}
+		}
+		_checkpointBuffer.putLong(8, front);
+		_checkpointBuffer.putLong(16, frontBytes);
+		_checkpointBuffer.putLong(24, head);
+		_checkpointBuffer.putLong(32, headBytes);
+		_checkpointBuffer.putLong(40, System.currentTimeMillis());
+		_checkpointBuffer.putLong(0, CHECKPOINT_MAGIC);
+	}
+
+	/**
+	 * 还没有被Solr确认的记录数(包括正在发送的)
+	 */
+	long size() {
+		return _array.getHeadIndex() - _front;
+	}
+
+	/**
+	 * 还没有被Solr确认的字节数(压缩后)
+	 */
+	long sizeBytes() {
+		return Math.max(_headBytes.get() - _frontBytes, 0);
+	}
+
+	/**
+	 * 删除队头之前的数据文件
+	 */
+	void gc() throws IOException {
+		long beforeIndex = _front;
+		if (beforeIndex == 0L) {
+			beforeIndex = Long.MAX_VALUE;
+		} else {
+			beforeIndex--;
+		}
+		try {
+			_array.removeBeforeIndex(beforeIndex);
+		} catch (IndexOutOfBoundsException e) { //和BigQueueImpl.gc()一样,忽略!
+		}
+	}
+
+	void close() throws IOException {
+		schedule.shutdown();
+		_closed = true;
+		if (_persister != null) {
+			LockSupport.unpark(_persister);
+			try {
+				_persister.join(10 * 1000L);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			persist(new ArrayList<byte[]>(PERSIST_BATCH)); //缓冲区里剩下的记录
+		}
+		try {
+			checkpoint();
+			_array.close();
+			_frontBuffer.force();
+			_frontFile.close();
+			_checkpointBuffer.force();
+			_checkpointFile.close();
+		} finally {
+			_dict.close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + "{size:" + size() + ",sizeBytes:" + (_bytesExact ? "" : "~") + sizeBytes() + ",enqueued:" + enqueued.get() + ",enqueuedBytes:" + enqueuedBytes.get()
+		    + ",dequeued:" + dequeued.get() + ",retried:" + retried.get()
+		    + (_ring == null ? "" : ",buffered:" + _ring.size() + ",spilled:" + spilled.get() + ",dropped:" + dropped.get())
+		    + "}";
+	}
+}
@@ -0,0 +1,337 @@
+package wjw.hbase.solr;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.wjw.efjson.JsonArray;
+import org.wjw.efjson.JsonObject;
+
+/**
+ * BigQueue里的一条记录,有两种格式:
+ * <ul>
+ * <li>二进制(第一个字节是VERSION_2): op,表名引用,rowkey,更新时间,然后是(字段名引用,类型,值)的列表,以0结束.
+ * 整数用varint,名字编号来自队列的SolrDictionary,发送时才生成Solr JSON.表名引用0表示后面直接是名字,否则是编号+1;
+ * 字段名引用1表示后面直接是名字,否则是编号+2.旧版本写的VERSION记录表名引用就是编号,字段名引用是编号+1.</li>
+ * <li>JSON(第一个字节是'{'): 已经编码好的Solr JSON片段,发送时原样写进请求体.更新记录的格式是{"id":"...",...},
+ * 行删除记录的格式是{"delete":{"id":"..."}},id总是写在最前面,取id时不用解析整个JSON.
+ * 旧版本留下的数据和合并后重新入队的数据是这种格式.</li>
+ * </ul>
+ */
+class SolrRecord {
+	static final byte VERSION = 1; //旧版本的二进制记录,名字都在字典里
+	static final byte VERSION_2 = 3; //名字可以直接写在记录里
+	static final byte BATCH = 2; //一组记录: BATCH,记录数(varint),然后是每条记录的长度(varint)和内容
+
+	static final byte OP_PUT = 1; //更新字段,同时更新t_s,r_s,u_dt
+	static final byte OP_DELETE_COLUMNS = 2; //把字段设成null,同时更新u_dt
+	static final byte OP_DELETE_ROW = 3; //删除整行
+
+	static final int T_NULL = 0;
+	static final int T_STRING = 1;
+	static final int T_INT = 2;
+	static final int T_LONG = 3;
+	static final int T_FLOAT = 4;
+	static final int T_DOUBLE = 5;
+	static final int T_FALSE = 6;
+	static final int T_TRUE = 7;
+
+	private static final byte[] PREFIX_UPDATE = toAscii("{\"" + SolrRegionObserver.F_ID + "\":\"");
+	private static final byte[] PREFIX_DELETE = toAscii("{\"" + SolrCoalescer.OP_DELETE + "\":{\"" + SolrRegionObserver.F_ID + "\":\"");
+
+	final String id;
+	final boolean delete;
+	final byte[] data;
+	private final SolrDictionary dict; //二进制记录的字典,JSON记录为null
+
+	SolrRecord(String id, boolean delete, byte[] data) {
+		this(id, delete, data, null);
+	}
+
+	private SolrRecord(String id, boolean delete, byte[] data, SolrDictionary dict) {
+		this.id = id;
+		this.delete = delete;
+		this.data = data;
+		this.dict = dict;
+	}
+
+	/**
+	 * 生成行删除记录
+	 */
+	static SolrRecord newDelete(String id) {
+		SolrJsonWriter writer = new SolrJsonWriter(id.length() + 32);
+		writer.startObject().name(SolrCoalescer.OP_DELETE).startObject().name(SolrRegionObserver.F_ID).value(id).endObject()
+		    .endObject();
+		return new SolrRecord(id, true, writer.toByteArray());
+	}
+
+	/**
+	 * 从BigQueue里取出的数据生成记录,二进制记录只解析头部,旧版本写的JSON记录id不在最前面,只能解析整个JSON
+	 */
+	static SolrRecord parse(byte[] data, SolrDictionary dict) throws IOException {
+		if (data.length > 0 && (data[0] == VERSION || data[0] == VERSION_2)) {
+			Cursor cursor = new Cursor(data);
+			byte op = data[cursor.pos++];
+			String tableName = cursor.readTableName(dict);
+			String rowKey = cursor.readString();
+			return new SolrRecord(tableName + SolrRegionObserver.F_SEPARATOR + rowKey, op == OP_DELETE_ROW, data, dict);
+		}
+
+		if (startsWith(data, PREFIX_UPDATE)) {
+			String id = readString(data, PREFIX_UPDATE.length - 1);
+			if (id != null) {
+				return new SolrRecord(id, false, data);
+			}
+		} else if (startsWith(data, PREFIX_DELETE)) {
+			String id = readString(data, PREFIX_DELETE.length - 1);
+			if (id != null) {
+				return new SolrRecord(id, true, data);
+			}
+		}
+
+		JsonObject record = new JsonObject(new String(data, SolrTools.UTF_8));
+		return new SolrRecord(SolrCoalescer.idOf(record), SolrCoalescer.isDelete(record), data);
+	}
+
+	/**
+	 * 解析JSON对象
+	 */
+	JsonObject toJsonObject() throws IOException {
+		if (dict == null) {
+			return new JsonObject(new String(data, SolrTools.UTF_8));
+		}
+		SolrJsonWriter writer = new SolrJsonWriter();
+		writeJson(writer);
+		return new JsonObject(new String(writer.getBuffer(), 0, writer.size(), SolrTools.UTF_8));
+	}
+
+	/**
+	 * 把记录作为Solr JSON写进writer,JSON记录原样写入
+	 */
+	void writeJson(SolrJsonWriter writer) throws IOException {
+		if (dict == null) {
+			writer.rawValue(data, 0, data.length);
+			return;
+		}
+
+		Cursor cursor = new Cursor(data);
+		byte op = data[cursor.pos++];
+		String tableName = cursor.readTableName(dict);
+		String rowKey = cursor.readString();
+		writer.startObject();
+		if (op == OP_DELETE_ROW) {
+			writer.name(SolrCoalescer.OP_DELETE).startObject().name(SolrRegionObserver.F_ID).value(id).endObject();
+			writer.endObject();
+			return;
+		}
+
+		long time = cursor.readVarLong();
+		writer.name(SolrRegionObserver.F_ID).value(id);
+		String name;
+		while ((name = cursor.readFieldName(dict)) != null) {
+			int type = data[cursor.pos++];
+			switch (type) {
+			case T_NULL:
+				writer.set(name, (String) null);
+				break;
+			case T_STRING:
+				writer.set(name, cursor.readString());
+				break;
+			case T_INT:
+			case T_LONG:
+				long v = cursor.readVarLong();
+				writer.set(name, (v >>> 1) ^ -(v & 1));
+				break;
+			case T_FLOAT:
+				writer.set(name, Float.intBitsToFloat((int) cursor.readFixed(4)));
+				break;
+			case T_DOUBLE:
+				writer.set(name, Double.longBitsToDouble(cursor.readFixed(8)));
+				break;
+			case T_FALSE:
+				writer.set(name, false);
+				break;
+			case T_TRUE:
+				writer.set(name, true);
+				break;
+			default:
+				throw new IOException("unknown field type:" + type + ",id:" + id);
+			}
+		}
+		if (op == OP_PUT) {
+			writer.set(SolrRegionObserver.F_TABLENAME, tableName);
+			writer.set(SolrRegionObserver.F_ROWKEY, rowKey);
+		}
+		writer.set(SolrRegionObserver.F_UPDATETIME, SolrTools.solrDateFormat.format(new java.util.Date(time)));
+		writer.endObject();
+	}
+
+	static boolean isBatch(byte[] data) {
+		return data.length > 0 && data[0] == BATCH;
+	}
+
+	/**
+	 * 把多条记录打包成BigQueue里的一个条目
+	 */
+	static byte[] packBatch(List<byte[]> records) {
+		int size = 1 + varLongSize(records.size());
+		for (byte[] record : records) {
+			size = size + varLongSize(record.length) + record.length;
+		}
+		byte[] result = new byte[size];
+		result[0] = BATCH;
+		int pos = putVarLong(result, 1, records.size());
+		for (byte[] record : records) {
+			pos = putVarLong(result, pos, record.length);
+			System.arraycopy(record, 0, result, pos, record.length);
+			pos = pos + record.length;
+		}
+		return result;
+	}
+
+	/**
+	 * 拆开packBatch()打包的条目
+	 */
+	static List<byte[]> unpackBatch(byte[] data) throws IOException {
+		Cursor cursor = new Cursor(data);
+		int count = (int) cursor.readVarLong();
+		List<byte[]> records = new ArrayList<byte[]>(count);
+		for (int i = 0; i < count; i++) {
+			int len = (int) cursor.readVarLong();
+			if (cursor.pos + len > data.length) {
+				throw new IOException("truncated batch record");
+			}
+			byte[] record = new byte[len];
+			System.arraycopy(data, cursor.pos, record, 0, len);
+			cursor.pos = cursor.pos + len;
+			records.add(record);
+		}
+		return records;
+	}
+
+	private static int varLongSize(long v) {
+		int size = 1;
+		while ((v & ~0x7FL) != 0) {
+			v >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private static int putVarLong(byte[] buf, int pos, long v) {
+		while ((v & ~0x7FL) != 0) {
+			buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte) v;
+		return pos;
+	}
+
+	/**
+	 * 读二进制记录的游标,跳过第一个字节(VERSION或者BATCH)
+	 */
+	private static class Cursor {
+		final byte[] data;
+		final boolean inline; //VERSION_2,名字可以直接写在记录里
+		int pos = 1;
+
+		Cursor(byte[] data) {
+			this.data = data;
+			this.inline = data[0] == VERSION_2;
+		}
+
+		String readTableName(SolrDictionary dict) throws IOException {
+			long ref = readVarLong();
+			if (!inline) {
+				return dict.name((int) ref);
+			}
+			return ref == 0 ? readString() : dict.name((int) (ref - 1));
+		}
+
+		/**
+		 * @return 字段名,字段结束时返回null
+		 */
+		String readFieldName(SolrDictionary dict) throws IOException {
+			long ref = readVarLong();
+			if (ref == 0) {
+				return null;
+			}
+			if (!inline) {
+				return dict.name((int) (ref - 1));
+			}
+			return ref == 1 ? readString() : dict.name((int) (ref - 2));
+		}
+
+		long readVarLong() throws IOException {
+			long result = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				if (pos >= data.length) {
+					throw new IOException("truncated record");
+				}
+				byte b = data[pos++];
+				result |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new IOException("malformed varint");
+		}
+
+		long readFixed(int bytes) {
+			long result = 0;
+			for (int i = 0; i < bytes; i++) {
+				result = (result << 8) | (data[pos++] & 0xFF);
+			}
+			return result;
+		}
+
+		String readString() throws IOException {
+			int len = (int) readVarLong();
+			String s = new String(data, pos, len, SolrTools.UTF_8);
+			pos += len;
+			return s;
+		}
+	}
+
+	/**
+	 * 读取从quote位置开始的JSON字符串,格式不对时返回null
+	 */
+	private static String readString(byte[] data, int quote) throws UnsupportedEncodingException {
+		boolean escaped = false;
+		for (int i = quote + 1; i < data.length; i++) {
+			byte b = data[i];
+			if (b == '\\') {
+				escaped = true;
+				i++;
+			} else if (b == '"') {
+				if (!escaped) {
+					return new String(data, quote + 1, i - quote - 1, SolrTools.UTF_8);
+				}
+				JsonArray literal = new JsonArray("[" + new String(data, quote, i - quote + 1, SolrTools.UTF_8) + "]"); //有转义字符,很少见
+				return literal.get(0);
+			}
+		}
+		return null;
+	}
+
+	private static boolean startsWith(byte[] data, byte[] prefix) {
+		if (data.length < prefix.length) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++) {
+			if (data[i] != prefix[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] toAscii(String s) {
+		try {
+			return s.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
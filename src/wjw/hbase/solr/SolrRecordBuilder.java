@@ -0,0 +1,171 @@
+package wjw.hbase.solr;
+
+import java.io.IOException;
+
+/**
+ * 生成BigQueue里的二进制记录,格式见SolrRecord.内部缓冲区可以重复使用,不是线程安全的.
+ */
+class SolrRecordBuilder {
+	private byte[] _buf = new byte[256];
+	private int _count;
+	private int _fields;
+	private SolrDictionary _dict;
+
+	/**
+	 * 开始一条新记录
+	 *
+	 * @param op
+	 *          - SolrRecord.OP_PUT, SolrRecord.OP_DELETE_COLUMNS 或者 SolrRecord.OP_DELETE_ROW
+	 * @param time
+	 *          - 更新时间(毫秒),行删除时忽略
+	 */
+	public SolrRecordBuilder reset(SolrDictionary dict, byte op, String tableName, byte[] row, long time) throws IOException {
+		_dict = dict;
+		_count = 0;
+		_fields = 0;
+		write(SolrRecord.VERSION_2);
+		write(op);
+		int id = dict.id(tableName);
+		if (id < 0) { //还不在字典里,直接写名字
+			writeVarLong(0);
+			writeString(tableName);
+		} else {
+			writeVarLong(id + 1L);
+		}
+		writeVarLong(row.length);
+		write(row, 0, row.length);
+		if (op != SolrRecord.OP_DELETE_ROW) {
+			writeVarLong(time);
+		}
+		return this;
+	}
+
+	public SolrRecordBuilder addString(String name, String value) throws IOException {
+		if (value == null) {
+			return addNull(name);
+		}
+		byte[] data = value.getBytes(SolrTools.UTF_8);
+		field(name, SolrRecord.T_STRING);
+		writeVarLong(data.length);
+		write(data, 0, data.length);
+		return this;
+	}
+
+	/**
+	 * 添加字符串字段,value是UTF-8编码的字节,直接复制不生成String
+	 */
+	public SolrRecordBuilder addString(String name, byte[] value, int offset, int length) throws IOException {
+		field(name, SolrRecord.T_STRING);
+		writeVarLong(length);
+		write(value, offset, length);
+		return this;
+	}
+
+	public SolrRecordBuilder addInt(String name, int value) throws IOException {
+		field(name, SolrRecord.T_INT);
+		writeVarLong(zigzag(value));
+		return this;
+	}
+
+	public SolrRecordBuilder addLong(String name, long value) throws IOException {
+		field(name, SolrRecord.T_LONG);
+		writeVarLong(zigzag(value));
+		return this;
+	}
+
+	public SolrRecordBuilder addFloat(String name, float value) throws IOException {
+		field(name, SolrRecord.T_FLOAT);
+		writeFixed(Float.floatToIntBits(value), 4);
+		return this;
+	}
+
+	public SolrRecordBuilder addDouble(String name, double value) throws IOException {
+		field(name, SolrRecord.T_DOUBLE);
+		writeFixed(Double.doubleToLongBits(value), 8);
+		return this;
+	}
+
+	public SolrRecordBuilder addBoolean(String name, boolean value) throws IOException {
+		field(name, value ? SolrRecord.T_TRUE : SolrRecord.T_FALSE);
+		return this;
+	}
+
+	public SolrRecordBuilder addNull(String name) throws IOException {
+		field(name, SolrRecord.T_NULL);
+		return this;
+	}
+
+	/**
+	 * 已经添加的字段数
+	 */
+	public int fields() {
+		return _fields;
+	}
+
+	/**
+	 * 结束记录,返回编码后的字节,之后要先reset()才能再用
+	 */
+	public byte[] toByteArray() {
+		write(0); //字段结束标志
+		byte[] result = new byte[_count];
+		System.arraycopy(_buf, 0, result, 0, _count);
+		return result;
+	}
+
+	private void field(String name, int type) throws IOException {
+		int id = _dict.id(name);
+		if (id < 0) { //还不在字典里,直接写名字
+			writeVarLong(1);
+			writeString(name);
+		} else {
+			writeVarLong(id + 2L); //0留给结束标志,1表示直接写名字
+		}
+		write(type);
+		_fields++;
+	}
+
+	private void writeString(String s) throws IOException {
+		byte[] data = s.getBytes(SolrTools.UTF_8);
+		writeVarLong(data.length);
+		write(data, 0, data.length);
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private void writeVarLong(long v) {
+		ensure(10);
+		while ((v & ~0x7FL) != 0) {
+			_buf[_count++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		_buf[_count++] = (byte) v;
+	}
+
+	private void writeFixed(long v, int bytes) {
+		ensure(bytes);
+		for (int i = bytes - 1; i >= 0; i--) {
+			_buf[_count++] = (byte) (v >>> (i * 8));
+		}
+	}
+
+	private void write(int b) {
+		ensure(1);
+		_buf[_count++] = (byte) b;
+	}
+
+	private void write(byte[] b, int offset, int length) {
+		ensure(length);
+		System.arraycopy(b, offset, _buf, _count, length);
+		_count += length;
+	}
+
+	private void ensure(int more) {
+		if (_count + more > _buf.length) {
+			byte[] newBuf = new byte[Math.max(_buf.length * 2, _count + more)];
+			System.arraycopy(_buf, 0, newBuf, 0, _count);
+			_buf = newBuf;
+		}
+	}
+}
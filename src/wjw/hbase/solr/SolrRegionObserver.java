@@ -1,5 +1,6 @@
 package wjw.hbase.solr;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -8,20 +9,23 @@ import java.util.NavigableMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.hadoop.hbase.Cell;
-import org.apache.hadoop.hbase.CellUtil;
 import org.apache.hadoop.hbase.CoprocessorEnvironment;
+import org.apache.hadoop.hbase.DoNotRetryIOException;
 import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.HConstants.OperationStatusCode;
 import org.apache.hadoop.hbase.client.Durability;
+import org.apache.hadoop.hbase.client.Mutation;
 import org.apache.hadoop.hbase.client.Put;
 import org.apache.hadoop.hbase.coprocessor.BaseRegionObserver;
 import org.apache.hadoop.hbase.coprocessor.ObserverContext;
 import org.apache.hadoop.hbase.coprocessor.RegionCoprocessorEnvironment;
+import org.apache.hadoop.hbase.regionserver.MiniBatchOperationInProgress;
 import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
 import org.apache.hadoop.hbase.util.Bytes;
+import org.apache.hadoop.hbase.zookeeper.ZKConfig;
 import org.apache.log4j.Logger;
 import org.wjw.efjson.JsonArray;
 import org.wjw.efjson.JsonObject;
@@ -39,6 +43,34 @@ public class SolrRegionObserver extends BaseRegionObserver {
 	static final String HBASE_SOLR_CORENAME = PREFIX_HBASE_SOLR + "coreName";
 	static final String HBASE_SOLR_CONNECTTIMEOUT = PREFIX_HBASE_SOLR + "connectTimeout";
 	static final String HBASE_SOLR_READTIMEOUT = PREFIX_HBASE_SOLR + "readTimeout";
+	static final String HBASE_SOLR_BATCHSIZE = PREFIX_HBASE_SOLR + "batchSize";
+	static final String HBASE_SOLR_BATCHBYTES = PREFIX_HBASE_SOLR + "batchBytes";
+	static final String HBASE_SOLR_COALESCEMILLIS = PREFIX_HBASE_SOLR + "coalesceMillis";
+	static final String HBASE_SOLR_TRANSPORT = PREFIX_HBASE_SOLR + "transport";
+	static final String HBASE_SOLR_MAXCONNECTIONSPERROUTE = PREFIX_HBASE_SOLR + "maxConnectionsPerRoute";
+	static final String HBASE_SOLR_CONNECTIONIDLETIMEOUT = PREFIX_HBASE_SOLR + "connectionIdleTimeout";
+	static final String HBASE_SOLR_SENDERWORKERS = PREFIX_HBASE_SOLR + "senderWorkers";
+	static final String HBASE_SOLR_SENDERINFLIGHT = PREFIX_HBASE_SOLR + "senderInflight";
+	static final String HBASE_SOLR_QUEUECODEC = PREFIX_HBASE_SOLR + "queueCodec";
+	static final String HBASE_SOLR_GZIPREQUESTS = PREFIX_HBASE_SOLR + "gzipRequests";
+	static final String HBASE_SOLR_QUEUEPARTITIONS = PREFIX_HBASE_SOLR + "queuePartitions";
+	static final String HBASE_SOLR_QUEUEPARTITIONBY = PREFIX_HBASE_SOLR + "queuePartitionBy";
+	static final String HBASE_SOLR_ASYNCENQUEUE = PREFIX_HBASE_SOLR + "asyncEnqueue";
+	static final String HBASE_SOLR_RINGCAPACITY = PREFIX_HBASE_SOLR + "ringCapacity";
+	static final String HBASE_SOLR_RINGFULLPOLICY = PREFIX_HBASE_SOLR + "ringFullPolicy";
+	static final String HBASE_SOLR_BATCHMUTATE = PREFIX_HBASE_SOLR + "batchMutate";
+	static final String HBASE_SOLR_COMMITPOLICY = PREFIX_HBASE_SOLR + "commitPolicy";
+	static final String HBASE_SOLR_COMMITWITHIN = PREFIX_HBASE_SOLR + "commitWithin";
+	static final String HBASE_SOLR_COMMITDOCS = PREFIX_HBASE_SOLR + "commitDocs";
+	static final String HBASE_SOLR_COMMITMILLIS = PREFIX_HBASE_SOLR + "commitMillis";
+	static final String HBASE_SOLR_COMMITZNODE = PREFIX_HBASE_SOLR + "commitZNode";
+	static final String HBASE_SOLR_BREAKERFAILURES = PREFIX_HBASE_SOLR + "breakerFailures";
+	static final String HBASE_SOLR_BREAKEROPENMILLIS = PREFIX_HBASE_SOLR + "breakerOpenMillis";
+	static final String HBASE_SOLR_BREAKERMAXOPENMILLIS = PREFIX_HBASE_SOLR + "breakerMaxOpenMillis";
+	static final String HBASE_SOLR_RETRYBACKOFFMILLIS = PREFIX_HBASE_SOLR + "retryBackoffMillis";
+	static final String HBASE_SOLR_INVALIDVALUE = PREFIX_HBASE_SOLR + "invalidValue";
+	static final String HBASE_SOLR_ZKHOST = PREFIX_HBASE_SOLR + "zkHost";
+	static final String HBASE_SOLR_RECOVERINGWEIGHT = PREFIX_HBASE_SOLR + "recoveringWeight";
 
 	static final String F_SEPARATOR = "#";
 	static final String F_ID = "id";
@@ -50,69 +82,178 @@ public class SolrRegionObserver extends BaseRegionObserver {
 		JsonObject.setDateFormat(new SimpleDateFormat(SolrTools.LOGDateFormatPattern));
 	}
 
-	private static volatile int _startCount = 0; //
+	private static volatile int _startCount = 0; //启动计数
 
-	private static String queueDir; //BigQueueĿ¼
+	private static String queueDir; //本地BigQueue的目录
 
-	private static String solrUrl; //SolrURL,Զŷָ
+	private static String solrUrl; //Solr的添加索引的URL,多个以逗号分隔
 
-	private static String coreName; //core
+	private static String coreName; //core名字
 
-	private static int connectTimeout = 60 * 1000; //ӳʱ()
+	private static int connectTimeout = 60 * 1000; //连接超时(毫秒)
 
-	private static int readTimeout = 60 * 1000; //ʱ()
+	private static int readTimeout = 60 * 1000; //读超时(毫秒)
 
-	private static JsonArray _stateArray;
-	private static java.util.List<String> _urlUpdates;
+	private static int batchSize = 100; //每次批量提交给Solr的最大文档数
 
-	private static Lock _lockPost = new ReentrantLock();
-	private static int _indexPost = -1;
+	private static int batchBytes = 1024 * 1024; //每次批量提交给Solr的最大字节数
 
-	private static IBigQueue _bqUpdate;
-	private static IBigQueue _bqDelete;
+	private static int coalesceMillis = 0; //合并同一行更新的时间窗口(毫秒),0表示只合并队列里已有的数据
 
-	private static ScheduledExecutorService _scheduleSync = Executors.newSingleThreadScheduledExecutor(); //ˢSolrȺ״̬Scheduled
-	private static ScheduledExecutorService _scheduleSolrUpdate = Executors.newSingleThreadScheduledExecutor(); //SolrȺUpdateݵScheduled
-	private static ScheduledExecutorService _scheduleSolrDelete = Executors.newSingleThreadScheduledExecutor(); //SolrȺDeleteݵScheduled
+	private static int senderWorkers = 0; //并行向Solr发送数据的线程数,0表示每个活动的Solr节点一个
+
+	private static int senderInflight = 4; //每个发送线程最多积压的批次数
+
+	private static int queuePartitions = 1; //更新队列的分区数
+
+	private static String queuePartitionBy = "row"; //分区方式: table(按表名),row(按表名和rowkey)
+
+	private static boolean asyncEnqueue = false; //postPut/postDelete是否只写内存缓冲区,由后台线程写BigQueue
+
+	private static int ringCapacity = 65536; //每个分区的内存缓冲区容量(记录数)
+
+	private static String ringFullPolicy = "spill"; //内存缓冲区满了时: block(等待),spill(直接写BigQueue),drop(丢弃并计数)
+
+	private static boolean batchMutate = false; //在postBatchMutate里整批处理,postPut/postDelete不再处理
+
+	private static volatile SolrCommitPolicy _commitPolicy; //什么时候让Solr提交
+
+	private static volatile SolrNodeHealth _health = new SolrNodeHealth(3, 1000, 60 * 1000, 100, 180 * 1000); //每个Solr节点的熔断器
+
+	/**
+	 * 由Solr集群状态生成的路由表,不可变,集群状态变化时整个替换,读的时候不用加锁
+	 */
+	static final class Routing {
+		final JsonArray stateArray;
+		final List<String> urlUpdates; //活动的节点
+		final SolrShardRouter router; //按shard路由到leader,为null时在urlUpdates之间选择
+
+		Routing(JsonArray stateArray, List<String> urlUpdates, SolrShardRouter router) {
+			this.stateArray = stateArray;
+			this.urlUpdates = java.util.Collections.unmodifiableList(urlUpdates);
+			this.router = router;
+		}
+	}
+
+	private static final AtomicReference<Routing> _routing = new AtomicReference<Routing>(new Routing(null,
+	    java.util.Collections.<String> emptyList(), null));
+	private static volatile SolrBalancer _balancer = new SolrBalancer(0.1); //按应答时间和正在处理的请求数在节点之间选择
+	private static final Object _lockState = new Object(); //应用集群状态的锁
+	private static volatile SolrZkClusterState _zkState; //watch Solr的ZooKeeper,为null时只轮询
+
+	private static volatile SolrQueuePartition[] _partitions; //更新队列的分区,行删除也在这里
+	private static SolrCodec _codec; //BigQueue里数据的压缩
+	private static volatile SolrFieldMapping _mapping; //HBase列到Solr字段的映射
+	private static IBigQueue _bqDelete; //行删除现在和更新放在更新队列里,这里只消费旧版本留下的删除数据
+	private static volatile SolrDeadLetters _deadLetters; //Solr永久拒绝的文档
+
+	private static ScheduledExecutorService _scheduleSync = Executors.newSingleThreadScheduledExecutor(); //刷新Solr集群状态的Scheduled
+	private static ScheduledExecutorService _scheduleSolrDelete = Executors.newSingleThreadScheduledExecutor(); //向Solr集群Delete数据的Scheduled
+
+	private static volatile java.util.concurrent.ExecutorService[] _senders; //向Solr发送数据的线程,同一个id总是交给同一个线程,保证顺序.连上Solr之前为null
+	private static volatile java.util.concurrent.Semaphore[] _senderPermits; //每个发送线程的积压限制
+
+	private static final ThreadLocal<SolrJsonWriter> _writer = new ThreadLocal<SolrJsonWriter>() { //每个线程重复使用的JSON缓冲区
+		@Override
+		protected SolrJsonWriter initialValue() {
+			return new SolrJsonWriter();
+		}
+	};
+
+	private static final ThreadLocal<SolrRecordBuilder> _builder = new ThreadLocal<SolrRecordBuilder>() { //每个线程重复使用的二进制记录缓冲区
+		@Override
+		protected SolrRecordBuilder initialValue() {
+			return new SolrRecordBuilder();
+		}
+	};
+
+	/**
+	 * 本地BigQueue的目录
+	 */
+	static String getQueueDir() {
+		return queueDir;
+	}
 
 	private String sanitizeFilename(String unsanitized) {
 		return unsanitized.replaceAll("[\\?\\\\/:|<>\\*]", " ") // filter out ? \ / : | < > *
 		.replaceAll("\\s", "_"); // white space as underscores
 	}
 
+	/**
+	 * 在所有节点之间选择负载低的,跳过熔断了的节点,都熔断了时返回null
+	 */
 	public String getSolrUpdateUrl() {
-		if (_urlUpdates.size() == 1) {
-			return _urlUpdates.get(0);
-		}
+		return _balancer.choose(_routing.get().urlUpdates, _health);
+	}
 
-		_lockPost.lock();
-		try {
-			_indexPost++;
-			if (_indexPost >= _urlUpdates.size()) {
-				_indexPost = 0;
+	/**
+	 * 第i次尝试时使用的URL,urls为null时在所有节点之间选择.跳过熔断了的节点,都熔断了时返回null
+	 */
+	private String getSolrUpdateUrl(List<String> urls, int i) {
+		if (urls == null) {
+			return getSolrUpdateUrl();
+		}
+		for (int j = 0; j < urls.size(); j++) {
+			String url = urls.get((i + j) % urls.size());
+			if (_health.allow(url)) {
+				return url;
 			}
+		}
+		return null;
+	}
 
-			return _urlUpdates.get(_indexPost);
-		} finally {
-			_lockPost.unlock();
+	/**
+	 * 等待第attempt次重试前的退避时间
+	 */
+	private static void backoff(int attempt) {
+		try {
+			Thread.sleep(_health.backoff(attempt));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
 	}
 
-	private void solrUpdate(JsonObject doc) throws Exception {
+	/**
+	 * 把已经编码好的请求体提交给Solr,依次尝试urls里的节点
+	 */
+	private void solrPost(List<String> urls, byte[] body, int offset, int length) throws Exception {
 		JsonObject jsonResponse = null;
 		Exception ex = null;
-		for (int i = 0; i < _urlUpdates.size(); i++) {
+		List<String> nodes = urls == null ? _routing.get().urlUpdates : urls;
+		if (nodes.isEmpty()) { //还没有读到Solr集群状态
+			throw new IOException("no available Solr node:" + nodes);
+		}
+		for (int i = 0; i < nodes.size(); i++) {
+			String url = getSolrUpdateUrl(urls, i);
+			if (url == null) { //所有节点都熔断了,不用再等超时
+				ex = new IOException("no available Solr node:" + nodes);
+				break;
+			}
+			SolrBalancer.Node node = _balancer.begin(url);
+			long start = System.nanoTime();
 			try {
-				jsonResponse = SolrTools.updateDoc(getSolrUpdateUrl(), connectTimeout, readTimeout, doc);
-				if (SolrTools.getStatus(jsonResponse) == 0) {
-					ex = null;
+				boolean answered = false;
+				try {
+					jsonResponse = SolrTools.updateRaw(_commitPolicy.updateUrl(url), connectTimeout, readTimeout, body, offset,
+					    length);
+					answered = true;
+				} finally {
+					_balancer.end(node, start, answered);
+				}
+				_health.success(url);
+				ex = null;
+				int status = SolrTools.getStatus(jsonResponse);
+				if (status == 0) {
+					break;
+				}
+				if (SolrResponseException.isPermanent(status)) { //数据本身有错,换节点也一样
 					break;
 				}
 			} catch (Exception e) {
+				_health.failure(url);
 				ex = e;
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e1) {
+				if (i + 1 < nodes.size()) {
+					backoff(i);
 				}
 			}
 		}
@@ -121,52 +262,279 @@ public class SolrRegionObserver extends BaseRegionObserver {
 		}
 
 		if (SolrTools.getStatus(jsonResponse) != 0) {
-			throw new RuntimeException(jsonResponse.encodePrettily());
+			throw new SolrResponseException(jsonResponse);
 		}
 	}
 
-	private void solrDelete(JsonObject doc) throws Exception {
-		JsonObject jsonResponse = null;
-		Exception ex = null;
-		for (int i = 0; i < _urlUpdates.size(); i++) {
+	/**
+	 * 把更新记录原样拼成JSON数组: [record,record,...]
+	 */
+	private static SolrJsonWriter writeUpdates(List<SolrRecord> records) throws IOException {
+		SolrJsonWriter writer = _writer.get().reset();
+		writer.startArray();
+		for (SolrRecord record : records) {
+			record.writeJson(writer);
+		}
+		writer.endArray();
+		return writer;
+	}
+
+	/**
+	 * 按id删除: {"delete":["id",...]}
+	 */
+	private static SolrJsonWriter writeDeletes(List<String> ids) {
+		SolrJsonWriter writer = _writer.get().reset();
+		writer.startObject().name(SolrCoalescer.OP_DELETE).startArray();
+		for (String id : ids) {
+			writer.value(id);
+		}
+		writer.endArray().endObject();
+		return writer;
+	}
+
+	/**
+	 * 批量向Solr提交数据,失败时把批次对半拆分后分别重试,以便把出错的文档隔离出来.
+	 * 被Solr永久拒绝的单个文档放进死信队列,不算失败.
+	 * 
+	 * @param urls
+	 *          - 可以提交的URL,依次尝试,为null时在所有节点之间选择
+	 * @param batch
+	 *          - 合并后的记录
+	 * @param partition
+	 *          - 记录所在的更新队列分区,不是从分区里读出来的时为null
+	 * @return 最终没有提交成功的记录(按原来的顺序)
+	 */
+	private List<SolrRecord> solrUpdateBatch(List<String> urls, List<SolrRecord> batch, SolrQueuePartition partition) {
+		try {
+			SolrJsonWriter writer = writeUpdates(batch);
+			solrPost(urls, writer.getBuffer(), 0, writer.size());
+			return java.util.Collections.emptyList();
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+			if (batch.size() == 1) {
+				if (SolrResponseException.isPermanent(e) && deadLetter(batch.get(0), (SolrResponseException) e, partition)) {
+					return java.util.Collections.emptyList();
+				}
+				return batch;
+			}
+
+			int half = batch.size() / 2;
+			List<SolrRecord> failed = new java.util.ArrayList<SolrRecord>(solrUpdateBatch(urls, batch.subList(0, half), partition));
+			if (failed.size() == half) { //前一半全部失败,说明Solr不可用,剩下的就不用再试了!
+				failed.addAll(batch.subList(half, batch.size()));
+			} else {
+				failed.addAll(solrUpdateBatch(urls, batch.subList(half, batch.size()), partition));
+			}
+			return failed;
+		}
+	}
+
+	/**
+	 * 按id批量删除,和solrUpdateBatch()一样失败时对半拆分后分别重试,被Solr永久拒绝的单个id放进死信队列
+	 * 
+	 * @return 最终没有删除成功的id(按原来的顺序)
+	 */
+	private List<String> solrDeleteBatch(List<String> urls, List<String> ids, SolrQueuePartition partition) {
+		try {
+			SolrJsonWriter writer = writeDeletes(ids);
+			solrPost(urls, writer.getBuffer(), 0, writer.size());
+			return java.util.Collections.emptyList();
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+			if (ids.size() == 1) {
+				if (SolrResponseException.isPermanent(e) && deadLetter(SolrRecord.newDelete(ids.get(0)), (SolrResponseException) e, partition)) {
+					return java.util.Collections.emptyList();
+				}
+				return ids;
+			}
+
+			int half = ids.size() / 2;
+			List<String> failed = new java.util.ArrayList<String>(solrDeleteBatch(urls, ids.subList(0, half), partition));
+			if (failed.size() == half) { //前一半全部失败,说明Solr不可用,剩下的就不用再试了!
+				failed.addAll(ids.subList(half, ids.size()));
+			} else {
+				failed.addAll(solrDeleteBatch(urls, ids.subList(half, ids.size()), partition));
+			}
+			return failed;
+		}
+	}
+
+	/**
+	 * 把Solr永久拒绝的记录放进死信队列,同时记下记录所在的分区,重新提交时放回同一个分区
+	 * 
+	 * @return 是否放进去了,没有死信队列或者记录解析不了时返回false
+	 */
+	private static boolean deadLetter(SolrRecord record, SolrResponseException e, SolrQueuePartition partition) {
+		SolrDeadLetters deadLetters = _deadLetters;
+		if (deadLetters == null) {
+			return false;
+		}
+		try {
+			SolrQueuePartition[] partitions = _partitions;
+			deadLetters.add(record.id, record.toJsonObject(), e, partition == null ? -1 : partition.index,
+			    partitions == null ? 0 : partitions.length, queuePartitionBy);
+			return true;
+		} catch (Exception ex) {
+			log.error(ex.getMessage(), ex);
+			return false;
+		}
+	}
+
+	/**
+	 * 把合并后的结果提交给Solr.能按shard路由时,每个shard的数据直接提交给它的leader,否则在所有节点之间选择负载低的.
+	 * 
+	 * @param partition
+	 *          - 记录所在的更新队列分区,放进死信队列时要记下来,不是从分区里读出来的时为null
+	 * @return 没有提交成功的记录,已经提交成功的和放进死信队列的不在里面,只需要重新发送这些
+	 */
+	List<SolrRecord> solrShip(SolrCoalescer coalescer, SolrQueuePartition partition) throws IOException {
+		List<String> deleteIds = coalescer.getDeleteIds();
+		List<SolrRecord> updates = coalescer.getUpdates();
+		if (log.isDebugEnabled()) {
+			log.debug("coalesce " + coalescer.count() + " records to " + deleteIds.size() + " deletes and " + updates.size() + " updates");
+		}
+
+		SolrShardRouter router = _routing.get().router;
+		if (router == null || router.size() == 0) {
+			return solrShip(null, deleteIds, updates, partition);
+		}
+
+		java.util.Map<SolrShardRouter.Shard, List<String>> deletesByShard = new java.util.LinkedHashMap<SolrShardRouter.Shard, List<String>>();
+		java.util.Map<SolrShardRouter.Shard, List<SolrRecord>> updatesByShard = new java.util.LinkedHashMap<SolrShardRouter.Shard, List<SolrRecord>>();
+		for (String id : deleteIds) {
+			SolrShardRouter.Shard shard = router.route(id);
+			List<String> ids = deletesByShard.get(shard);
+			if (ids == null) {
+				ids = new java.util.ArrayList<String>();
+				deletesByShard.put(shard, ids);
+				updatesByShard.put(shard, new java.util.ArrayList<SolrRecord>());
+			}
+			ids.add(id);
+		}
+		for (SolrRecord record : updates) {
+			SolrShardRouter.Shard shard = router.route(record.id);
+			List<SolrRecord> shardUpdates = updatesByShard.get(shard);
+			if (shardUpdates == null) {
+				shardUpdates = new java.util.ArrayList<SolrRecord>();
+				updatesByShard.put(shard, shardUpdates);
+			}
+			shardUpdates.add(record);
+		}
+
+		List<SolrRecord> failed = new java.util.ArrayList<SolrRecord>();
+		for (java.util.Map.Entry<SolrShardRouter.Shard, List<SolrRecord>> entry : updatesByShard.entrySet()) {
+			SolrShardRouter.Shard shard = entry.getKey();
+			List<String> ids = deletesByShard.get(shard);
+			failed.addAll(solrShip(shard == null ? null : shard.urlUpdates,
+			    ids == null ? java.util.Collections.<String> emptyList() : ids, entry.getValue(), partition));
+		}
+		return failed;
+	}
+
+	/**
+	 * 把一组数据提交给Solr,先提交行删除,再提交更新.
+	 * 
+	 * @param urls
+	 *          - 可以提交的URL,依次尝试,为null时在所有节点之间选择
+	 * @return 没有提交成功的记录,已经提交成功的和放进死信队列的不在里面
+	 */
+	private List<SolrRecord> solrShip(List<String> urls, List<String> deleteIds, List<SolrRecord> updates,
+	    SolrQueuePartition partition) {
+		List<SolrRecord> failed = new java.util.ArrayList<SolrRecord>();
+		if (deleteIds.size() > 0 && updates.size() > 0) { //先试试在同一个连接上流水线提交删除和更新
 			try {
-				jsonResponse = SolrTools.delDoc(getSolrUpdateUrl(), connectTimeout, readTimeout, doc);
-				if (SolrTools.getStatus(jsonResponse) == 0) {
-					ex = null;
-					break;
+				String url = getSolrUpdateUrl(urls, 0);
+				if (url == null) {
+					throw new IOException("no available Solr node:" + (urls == null ? _routing.get().urlUpdates : urls));
 				}
-			} catch (Exception e) {
-				ex = e;
+				List<byte[]> requests = new java.util.ArrayList<byte[]>(2);
+				requests.add(writeDeletes(deleteIds).toByteArray());
+				requests.add(writeUpdates(updates).toByteArray());
+				List<JsonObject> jsonResponses;
+				SolrBalancer.Node node = _balancer.begin(url);
+				long start = System.nanoTime();
+				boolean answered = false;
 				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e1) {
+					jsonResponses = SolrTools.updatePipelined(_commitPolicy.updateUrl(url), connectTimeout, readTimeout, requests);
+					answered = true;
+					_health.success(url);
+				} catch (Exception e) { //应答不是JSON时是RuntimeException,也要报告结果,否则half-open的节点一直在试探
+					_health.failure(url);
+					throw e;
+				} finally {
+					_balancer.end(node, start, answered);
+				}
+				boolean deleted = SolrTools.getStatus(jsonResponses.get(0)) == 0;
+				if (deleted && SolrTools.getStatus(jsonResponses.get(1)) == 0) {
+					_commitPolicy.onSent(deleteIds.size() + updates.size());
+					return failed;
+				}
+				if (deleted) { //删除已经成功,下面只重新提交更新
+					_commitPolicy.onSent(deleteIds.size());
+					deleteIds = java.util.Collections.emptyList();
 				}
+			} catch (Exception e) {
+				log.warn(e.getMessage(), e);
 			}
 		}
-		if (ex != null) {
-			throw ex;
+
+		if (deleteIds.size() > 0) {
+			List<String> failedIds = solrDeleteBatch(urls, deleteIds, partition);
+			_commitPolicy.onSent(deleteIds.size() - failedIds.size());
+			if (failedIds.size() > 0) {
+				for (String id : failedIds) {
+					failed.add(SolrRecord.newDelete(id));
+				}
+				failed.addAll(updates); //删除没成功,后面的更新也不能提交
+				return failed;
+			}
 		}
 
-		if (SolrTools.getStatus(jsonResponse) != 0) {
-			throw new RuntimeException(jsonResponse.encodePrettily());
+		if (updates.size() > 0) {
+			failed.addAll(solrUpdateBatch(urls, updates, partition));
+			_commitPolicy.onSent(updates.size() - failed.size());
 		}
+		return failed;
+	}
+
+	private void solrDelete(List<String> urls, JsonObject doc) throws Exception {
+		byte[] body = doc.encode().getBytes(SolrTools.UTF_8);
+		solrPost(urls, body, 0, body.length);
 	}
 
-	private void solrCommit() throws Exception {
+	void solrCommit() throws Exception {
 		JsonObject jsonResponse = null;
 		Exception ex = null;
-		for (int i = 0; i < _urlUpdates.size(); i++) {
+		List<String> nodes = _routing.get().urlUpdates;
+		if (nodes.isEmpty()) { //还没有读到Solr集群状态
+			throw new IOException("no available Solr node:" + nodes);
+		}
+		for (int i = 0; i < nodes.size(); i++) {
+			String url = getSolrUpdateUrl();
+			if (url == null) {
+				ex = new IOException("no available Solr node:" + nodes);
+				break;
+			}
+			SolrBalancer.Node node = _balancer.begin(url);
+			long start = System.nanoTime();
 			try {
-				jsonResponse = SolrTools.solrCommit(getSolrUpdateUrl(), connectTimeout, readTimeout);
+				boolean answered = false;
+				try {
+					jsonResponse = SolrTools.solrCommit(url, connectTimeout, readTimeout);
+					answered = true;
+				} finally {
+					_balancer.end(node, start, answered);
+				}
+				_health.success(url);
+				ex = null;
 				if (SolrTools.getStatus(jsonResponse) == 0) {
-					ex = null;
 					break;
 				}
 			} catch (Exception e) {
+				_health.failure(url);
 				ex = e;
-				try {
-					Thread.sleep(100);
-				} catch (InterruptedException e1) {
+				if (i + 1 < nodes.size()) {
+					backoff(i);
 				}
 			}
 		}
@@ -175,40 +543,336 @@ public class SolrRegionObserver extends BaseRegionObserver {
 		}
 
 		if (SolrTools.getStatus(jsonResponse) != 0) {
-			throw new RuntimeException(jsonResponse.encodePrettily());
+			throw new SolrResponseException(jsonResponse);
+		}
+	}
+
+	/**
+	 * 把合并后的一批数据交给第worker个发送线程,积压的批次达到上限时阻塞.
+	 * 完成后向分区报告结果,有失败时分区会从队头重新读取.
+	 */
+	private void submitSender(int worker, final SolrQueuePartition partition, final SolrQueuePartition.Round round,
+	    final SolrCoalescer coalescer) throws Exception {
+		final java.util.concurrent.Semaphore permits = _senderPermits[worker];
+		final java.util.concurrent.ExecutorService sender = _senders[worker];
+		permits.acquire();
+		try {
+			sender.execute(new Runnable() {
+				@Override
+				public void run() {
+					boolean ok = false;
+					try {
+						//只重新发送还没有成功的记录,一直重试到成功,已经成功的和放进死信队列的不会再发一次.
+						//同一个id总是在同一个发送线程上,在这里重试不会打乱同一个id的先后顺序
+						SolrCoalescer pending = coalescer;
+						for (int attempt = 0;; attempt++) {
+							List<SolrRecord> failed = null;
+							try {
+								failed = solrShip(pending, partition);
+							} catch (Exception e) {
+								log.error(e.getMessage(), e);
+							}
+							if (failed != null && failed.isEmpty()) {
+								ok = true;
+								break;
+							}
+							if (sender.isShutdown()) { //正在关闭,不再重试,重启后从队头重新读取
+								break;
+							}
+							if (failed != null) {
+								pending = new SolrCoalescer();
+								for (SolrRecord record : failed) {
+									pending.add(record);
+								}
+							}
+							partition.retried.addAndGet(pending.count());
+							backoff(Math.min(attempt, 10));
+						}
+					} catch (Exception e) {
+						log.error(e.getMessage(), e);
+					} finally {
+						permits.release();
+						try {
+							partition.ack(round, ok);
+						} catch (Exception e) {
+							log.error(e.getMessage(), e);
+						}
+					}
+				}
+			});
+		} catch (java.util.concurrent.RejectedExecutionException e) {
+			permits.release();
+			partition.ack(round, false);
+			throw e;
+		}
+	}
+
+	/**
+	 * 从分区的BigQueue取数据,按id分给发送线程
+	 */
+	private void drainPartition(SolrQueuePartition partition) {
+		if (_senders == null) { //还没有连上Solr,数据留在BigQueue里
+			return;
+		}
+		byte[] data;
+		SolrCoalescer[] coalescers = new SolrCoalescer[_senders.length];
+		int count = 0;
+		int bytes = 0;
+		long windowEnd = 0;
+		try {
+			if (partition.senderFailed && !partition.rewind()) { //有发送失败的数据,等正在发送的批次都结束后从队头重新读取
+				return;
+			}
+			while (!partition.senderFailed) {
+				for (int i = 0; i < coalescers.length; i++) {
+					coalescers[i] = new SolrCoalescer();
+				}
+				count = 0;
+				bytes = 0;
+				while (count < batchSize && (count == 0 || bytes < batchBytes)) { //凑够一批,至少取一条
+					if ((data = partition.next()) == null) {
+						if (count > 0 && System.currentTimeMillis() < windowEnd) { //合并窗口还没到,等一会儿
+							Thread.sleep(10);
+							continue;
+						}
+						break;
+					}
+					if (count == 0) {
+						windowEnd = System.currentTimeMillis() + coalesceMillis;
+					}
+					if (SolrRecord.isBatch(data)) { //postBatchMutate写入的一组记录
+						for (byte[] recordData : SolrRecord.unpackBatch(data)) {
+							count = count + coalesce(coalescers, partition, recordData);
+						}
+					} else {
+						count = count + coalesce(coalescers, partition, data);
+					}
+					bytes = bytes + data.length;
+				}
+				if (count == 0) {
+					break;
+				}
+
+				int senders = 0;
+				for (int i = 0; i < coalescers.length; i++) {
+					if (!coalescers[i].isEmpty()) {
+						senders++;
+					}
+				}
+				SolrQueuePartition.Round round = partition.addRound(senders); //全部发送成功后才移动队头
+				for (int i = 0; i < coalescers.length; i++) {
+					if (!coalescers[i].isEmpty()) {
+						submitSender(i, partition, round, coalescers[i]);
+					}
+				}
+			}
+
+			if ((Calendar.getInstance().get(Calendar.HOUR_OF_DAY) % 24) == 3) { //每天3点执行,删除不用的hbase_solr_update文件
+				partition.gc();
+			}
+		} catch (Exception e) {
+			partition.senderFailed = true; //已经读取但是没有交给发送线程的数据,下次从队头重新读取
+			log.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * 解析一条记录,按id交给对应的发送线程.无法解析的记录记下日志后跳过,不能挡住后面的数据
+	 * 
+	 * @return 加入的记录数
+	 */
+	private static int coalesce(SolrCoalescer[] coalescers, SolrQueuePartition partition, byte[] data) {
+		try {
+			SolrRecord record = SolrRecord.parse(data, partition.getDictionary());
+			coalescers[(record.id.hashCode() & Integer.MAX_VALUE) % coalescers.length].add(record);
+			return 1;
+		} catch (Exception e) {
+			log.error("skip unreadable record in " + partition.name + ":" + Bytes.toStringBinary(data), e);
+			return 0;
 		}
 	}
 
+	/**
+	 * 执行replay目录里的导出命令,然后把修改好的死信重新放进更新队列(按查询删除的放进旧的删除队列),按原来的顺序处理和提交.
+	 * 只有RegionObserver有本地队列,SolrReplicationEndpoint单独运行时不重新提交.
+	 */
+	private static void replayDeadLetters() {
+		SolrDeadLetters deadLetters = _deadLetters;
+		if (deadLetters == null) {
+			return;
+		}
+		for (File command : deadLetters.exportCommands()) {
+			deadLetters.runExport(command);
+		}
+
+		SolrQueuePartition[] partitions = _partitions;
+		if (partitions == null) {
+			return;
+		}
+		IBigQueue bqDelete = _bqDelete;
+		if (bqDelete == null) {
+			return;
+		}
+		for (File file : deadLetters.replayFiles()) {
+			//先读取整个文件并且算好每个文档去哪个队列,有错误时一条也不放进去
+			List<SolrQueuePartition> targets = new java.util.ArrayList<SolrQueuePartition>();
+			List<byte[]> datas = new java.util.ArrayList<byte[]>();
+			try {
+				for (JsonObject entry : SolrDeadLetters.readEntries(file)) {
+					JsonObject doc = entry.getObject(SolrDeadLetters.F_DOC);
+					byte[] data = doc.encode().getBytes(SolrTools.UTF_8);
+					String id = SolrCoalescer.idOf(doc);
+					if (id == null) { //按查询删除,放进旧的删除队列
+						targets.add(null);
+						datas.add(data);
+						continue;
+					}
+					targets.add(getReplayPartition(entry, id));
+					datas.add(data);
+				}
+			} catch (Exception e) {
+				log.error("can not replay:" + file, e);
+				deadLetters.reject(file);
+				continue;
+			}
+
+			File claimed = deadLetters.claim(file); //放进队列之前改名,中途出错时也不会重复提交
+			if (claimed == null) {
+				continue;
+			}
+			int i = 0;
+			try {
+				for (; i < datas.size(); i++) {
+					if (targets.get(i) == null) {
+						bqDelete.enqueue(_codec.encode(datas.get(i)));
+					} else {
+						targets.get(i).enqueue(datas.get(i));
+					}
+				}
+			} catch (Exception e) {
+				log.error("replayed only the first " + i + " of " + datas.size() + " docs, resubmit the rest of:" + claimed, e);
+			}
+			deadLetters.replayed(claimed, i);
+		}
+	}
+
+	/**
+	 * 重新提交的文档放回死信记下的分区.id里的rowkey不一定能还原成原来的字节,不能用它重新计算分区
+	 */
+	private static SolrQueuePartition getReplayPartition(JsonObject entry, String id) throws IOException {
+		SolrQueuePartition[] partitions = _partitions;
+		if (partitions.length == 1) {
+			return partitions[0];
+		}
+		int index = SolrDeadLetters.partitionOf(entry, partitions.length, queuePartitionBy);
+		if (index >= 0) {
+			return partitions[index];
+		}
+		if (queuePartitionBy.equalsIgnoreCase("table")) { //只按表名分区时不需要rowkey
+			int idx = id.indexOf(F_SEPARATOR);
+			return getPartition(idx < 0 ? id : id.substring(0, idx), null);
+		}
+		throw new IOException("no usable queue partition for:" + id + ", the dead letter has no partition or " + HBASE_SOLR_QUEUEPARTITIONS
+		    + "/" + HBASE_SOLR_QUEUEPARTITIONBY + " changed since it was exported");
+	}
+
+	/**
+	 * 行所在的分区,同一行总是在同一个分区
+	 */
+	private static SolrQueuePartition getPartition(String tableName, byte[] row) {
+		SolrQueuePartition[] partitions = _partitions;
+		if (partitions.length == 1) {
+			return partitions[0];
+		}
+		int hash = tableName.hashCode();
+		if (!queuePartitionBy.equalsIgnoreCase("table")) {
+			hash = hash * 31 + Bytes.hashCode(row);
+		}
+		return partitions[(hash & Integer.MAX_VALUE) % partitions.length];
+	}
+
 	public SolrRegionObserver() {
 		super();
 	}
 
 	@Override
 	public void start(CoprocessorEnvironment e) throws IOException {
+		start(e.getConfiguration(), true);
+	}
+
+	/**
+	 * 启动索引线程,RegionObserver和SolrReplicationEndpoint共用一份
+	 * 
+	 * @param queues
+	 *          - 是否需要本地BigQueue(SolrReplicationEndpoint直接从WAL读数据,不需要)
+	 */
+	void start(org.apache.hadoop.conf.Configuration conf, boolean queues) throws IOException {
 		synchronized (SolrRegionObserver.class) {
 			_startCount++;
-			if (_startCount > 1) { //Ѿʼ
+			if (_startCount > 1) { //已经初始化完毕
+				if (queues && _partitions == null) {
+					initQueues();
+				}
 				return;
 			}
-		}
 
-		init(e);
+			init(conf);
+			if (queues) {
+				initQueues();
+			}
+		}
+		log.info("STARTED: " + SolrRegionObserver.class.getName());
 	}
 
 	public void init(CoprocessorEnvironment e) throws IOException {
-		org.apache.hadoop.conf.Configuration conf = e.getConfiguration();
+		init(e.getConfiguration());
+		initQueues();
+	}
+
+	private void init(org.apache.hadoop.conf.Configuration conf) throws IOException {
 
 		queueDir = conf.get(HBASE_SOLR_QUEUEDIR);
 
-		solrUrl = conf.get(HBASE_SOLR_SOLRURL); //
-		coreName = conf.get(HBASE_SOLR_CORENAME); //
+		solrUrl = conf.get(HBASE_SOLR_SOLRURL); //必须设置
+		coreName = conf.get(HBASE_SOLR_CORENAME); //必须设置
 
 		connectTimeout = conf.getInt(HBASE_SOLR_CONNECTTIMEOUT, 60);
 		readTimeout = conf.getInt(HBASE_SOLR_READTIMEOUT, 60);
 
+		batchSize = conf.getInt(HBASE_SOLR_BATCHSIZE, 100);
+		batchBytes = conf.getInt(HBASE_SOLR_BATCHBYTES, 1024 * 1024);
+		coalesceMillis = conf.getInt(HBASE_SOLR_COALESCEMILLIS, 0);
+		senderWorkers = conf.getInt(HBASE_SOLR_SENDERWORKERS, 0);
+		senderInflight = conf.getInt(HBASE_SOLR_SENDERINFLIGHT, 4);
+		queuePartitions = conf.getInt(HBASE_SOLR_QUEUEPARTITIONS, 1);
+		queuePartitionBy = conf.get(HBASE_SOLR_QUEUEPARTITIONBY, "row");
+		asyncEnqueue = conf.getBoolean(HBASE_SOLR_ASYNCENQUEUE, false);
+		ringCapacity = conf.getInt(HBASE_SOLR_RINGCAPACITY, 65536);
+		ringFullPolicy = conf.get(HBASE_SOLR_RINGFULLPOLICY, "spill");
+		batchMutate = conf.getBoolean(HBASE_SOLR_BATCHMUTATE, false);
+		_codec = SolrCodec.getCodec(conf.get(HBASE_SOLR_QUEUECODEC, "none"));
+		_mapping = SolrFieldMapping.load(conf);
+		SolrTools.setGzipRequests(conf.getBoolean(HBASE_SOLR_GZIPREQUESTS, false));
+		_balancer = new SolrBalancer(conf.getFloat(HBASE_SOLR_RECOVERINGWEIGHT, 0.1f));
+
+		String transport = conf.get(HBASE_SOLR_TRANSPORT, "pooled");
+		if (transport.equalsIgnoreCase("pooled")) {
+			SolrTools.setTransport(new PooledSolrTransport(conf.getInt(HBASE_SOLR_MAXCONNECTIONSPERROUTE, 4),
+			    conf.getInt(HBASE_SOLR_CONNECTIONIDLETIMEOUT, 60) * 1000L));
+		} else if (transport.equalsIgnoreCase("urlconnection")) {
+			SolrTools.setTransport(new UrlConnectionSolrTransport());
+		} else {
+			try {
+				SolrTools.setTransport((SolrTransport) Class.forName(transport).newInstance());
+			} catch (Exception ex) {
+				throw new IOException("can not create transport:" + transport, ex);
+			}
+		}
+
 		if (queueDir == null) {
 			queueDir = System.getProperty("java.io.tmpdir");
 		}
+		_deadLetters = new SolrDeadLetters(queueDir);
 
 		if (solrUrl == null) {
 			throw new java.lang.VerifyError("solrUrl Not Null!");
@@ -230,111 +894,227 @@ public class SolrRegionObserver extends BaseRegionObserver {
 			readTimeout = readTimeout * 1000;
 		}
 
-		//ʼCloud
-		_stateArray = SolrTools.getClusterState(solrUrl, coreName, connectTimeout, readTimeout);
-		while (_stateArray == null) {
-			_stateArray = SolrTools.getClusterState(solrUrl, coreName, connectTimeout, readTimeout);
-			log.warn("can not connect Solr Cloud:" + "coreName:" + coreName + "URLS:" + solrUrl);
-			try {
-				java.util.concurrent.TimeUnit.SECONDS.sleep(3);
-			} catch (InterruptedException ite) {
-				log.error(ite);
-				break;
-			}
+		//流水线提交时一个请求要读两次应答,试探请求最多等连接超时加两倍的读超时
+		_health = new SolrNodeHealth(conf.getInt(HBASE_SOLR_BREAKERFAILURES, 3), conf.getLong(HBASE_SOLR_BREAKEROPENMILLIS,
+		    1000), conf.getLong(HBASE_SOLR_BREAKERMAXOPENMILLIS, 60 * 1000), conf.getLong(HBASE_SOLR_RETRYBACKOFFMILLIS, 100),
+		    connectTimeout + 2L * readTimeout);
+
+		if (batchSize < 1) {
+			batchSize = 1;
 		}
-		if (_stateArray == null) {
-			throw new RuntimeException("can not connect Solr Cloud:" + "coreName:" + coreName + "URLS:" + solrUrl);
-		} else {
-			log.info("Solr Cloud Status:" + _stateArray.encodePrettily());
+
+		if (batchBytes < 1) {
+			batchBytes = 1024 * 1024;
 		}
 
-		this._urlUpdates = new java.util.ArrayList<String>(_stateArray.size());
-		for (int i = 0; i < _stateArray.size(); i++) {
-			JsonObject jNode = _stateArray.<JsonObject> get(i);
-			if (jNode.getString("state").equalsIgnoreCase("active") || jNode.getString("state").equalsIgnoreCase("recovering")) {
-				this._urlUpdates.add(jNode.getString("base_url") + "/" + coreName + "/update");
+		if (senderInflight < 1) {
+			senderInflight = 1;
+		}
+
+		//初始化提交策略,soft时由ZooKeeper选出的一个RegionServer负责提交
+		_commitPolicy = new SolrCommitPolicy(this, conf.get(HBASE_SOLR_COMMITPOLICY, SolrCommitPolicy.POLICY_NONE),
+		    conf.getInt(HBASE_SOLR_COMMITWITHIN, 10000), conf.getLong(HBASE_SOLR_COMMITDOCS, 10000), conf.getLong(
+		        HBASE_SOLR_COMMITMILLIS, 1000), ZKConfig.getZKQuorumServersString(conf), conf.get(HBASE_SOLR_COMMITZNODE,
+		        "/hbase-solr/commit"));
+		_commitPolicy.start();
+		log.info("Solr commit policy:" + _commitPolicy);
+
+		//在后台连接Solr集群,不阻塞RegionServer的启动和Region的打开,连上之前数据只写进BigQueue
+		String zkHost = conf.get(HBASE_SOLR_ZKHOST, "");
+		if (zkHost.length() > 0) { //配置了Solr的ZooKeeper时watch集群状态的变化
+			_zkState = new SolrZkClusterState(zkHost, coreName, readTimeout);
+			_zkState.start();
+		}
+		_scheduleSync.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					_deadLetters.gc(); //回收已经导出的死信文件,不放在启动路径上
+				} catch (Exception e) {
+					log.error(e.getMessage(), e);
+				}
+				bootstrap();
+			}
+		});
+		_scheduleSync.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() { //不用等连上Solr,SolrDeadLetterTool在等待导出的结果
+				try {
+					replayDeadLetters();
+				} catch (Exception e) {
+					log.error(e.getMessage(), e);
+				}
+			}
+		}, 5, 5, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * 读到Solr集群状态后启动发送线程,然后定期刷新集群状态.读不到时3秒后再试
+	 */
+	private static void bootstrap() {
+		JsonArray stateArray = null;
+		try {
+			stateArray = _routing.get().stateArray; //ZooKeeper的watch可能已经读到了
+			if (stateArray == null) {
+				stateArray = SolrTools.getClusterState(solrUrl, coreName, connectTimeout, readTimeout);
 			}
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+		}
+		if (stateArray == null) {
+			log.warn("can not connect Solr Cloud:" + "coreName:" + coreName + "URLS:" + solrUrl);
+			if (!_scheduleSync.isShutdown()) {
+				_scheduleSync.schedule(new Runnable() {
+					@Override
+					public void run() {
+						bootstrap();
+					}
+				}, 3, TimeUnit.SECONDS);
+			}
+			return;
+		}
+		log.info("Solr Cloud Status:" + stateArray.encodePrettily());
+		applyClusterState(stateArray);
+
+		//初始化发送线程
+		if (senderWorkers < 1) {
+			senderWorkers = Math.max(1, _routing.get().urlUpdates.size());
+		}
+		java.util.concurrent.ExecutorService[] senders = new java.util.concurrent.ExecutorService[senderWorkers];
+		java.util.concurrent.Semaphore[] senderPermits = new java.util.concurrent.Semaphore[senderWorkers];
+		for (int i = 0; i < senderWorkers; i++) {
+			senders[i] = Executors.newSingleThreadExecutor();
+			senderPermits[i] = new java.util.concurrent.Semaphore(senderInflight);
 		}
+		_senderPermits = senderPermits;
+		_senders = senders; //不为null以后drain线程开始发送
+		log.info("Solr sender workers:" + senderWorkers + ",inflight:" + senderInflight);
 
 		int syncinterval = 30;
 		_scheduleSync.scheduleWithFixedDelay(new Runnable() {
 			@Override
-			public void run() { //ˢSolrȺ״̬
+			public void run() { //刷新Solr集群状态
+				if (_partitions != null && log.isInfoEnabled()) { //各个分区的计数
+					log.info("Solr update queues:" + java.util.Arrays.toString(_partitions));
+					log.info("Solr node health:" + _health);
+					log.info("Solr node load:" + _balancer);
+					log.info("Solr dead letters:" + _deadLetters);
+					log.info("Solr invalid values:" + _mapping);
+				}
+
+				SolrZkClusterState zkState = _zkState;
+				if (zkState != null && zkState.isWatching()) { //变化由ZooKeeper的watch通知,不用轮询
+					return;
+				}
 				JsonArray stateArray = SolrTools.getClusterState(solrUrl, coreName, connectTimeout, readTimeout);
 				if (stateArray == null) {
 					log.warn("can not connect Solr Cloud:" + solrUrl);
 					return;
 				}
-				if (_stateArray.encode().equals(stateArray.encode())) {
-					return;
+				applyClusterState(stateArray);
+			}
+		}, syncinterval, syncinterval, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * 使用新的Solr集群状态,重建节点列表和shard路由,没有变化时什么都不做.轮询和ZooKeeper的watch都调用这里
+	 */
+	static void applyClusterState(JsonArray stateArray) {
+		synchronized (_lockState) {
+			JsonArray oldStateArray = _routing.get().stateArray;
+			if (oldStateArray != null && oldStateArray.encode().equals(stateArray.encode())) {
+				return;
+			}
+
+			java.util.List<String> newUrlUpdates = new java.util.ArrayList<String>(stateArray.size());
+			for (int i = 0; i < stateArray.size(); i++) {
+				JsonObject jj = stateArray.<JsonObject> get(i);
+				boolean recovering = jj.getString("state").equalsIgnoreCase("recovering");
+				if (jj.getString("state").equalsIgnoreCase("active") || recovering) {
+					String url = jj.getString("base_url") + "/" + coreName + "/update";
+					newUrlUpdates.add(url);
+					_balancer.setRecovering(url, recovering); //recovering的节点少分一些请求
 				}
-				_stateArray = stateArray;
+			}
 
-				java.util.List<String> newUrlUpdates = new java.util.ArrayList<String>(stateArray.size());
-				for (int i = 0; i < stateArray.size(); i++) {
-					JsonObject jj = stateArray.<JsonObject> get(i);
-					if (jj.getString("state").equalsIgnoreCase("active") || jj.getString("state").equalsIgnoreCase("recovering")) {
-						newUrlUpdates.add(jj.getString("base_url") + "/" + coreName + "/update");
+			SolrShardRouter router = SolrShardRouter.build(stateArray, coreName);
+			_routing.set(new Routing(stateArray, newUrlUpdates, router)); //正在使用旧路由表的线程不受影响
+			log.info("Solr Shard Router:" + router);
+		}
+	}
+
+	private void initQueues() throws IOException {
+		//初始化IBigQueue,第0个分区沿用原来的hbase_solr_update
+		if (queuePartitions < 1) {
+			queuePartitions = 1;
+		}
+		SolrQueuePartition[] partitions = new SolrQueuePartition[queuePartitions];
+		for (int i = 0; i < queuePartitions; i++) {
+			partitions[i] = new SolrQueuePartition(i, queueDir, sanitizeFilename(i == 0 ? "hbase_solr_update"
+			    : "hbase_solr_update_" + i), _codec);
+			if (asyncEnqueue) {
+				partitions[i].startAsync(ringCapacity < 1 ? 65536 : ringCapacity, ringFullPolicy);
+			}
+		}
+		_partitions = partitions;
+		for (final SolrQueuePartition partition : partitions) {
+			partition.schedule.execute(new Runnable() {
+				@Override
+				public void run() { //启动时不等回收数据文件,积压很多时这一步很慢
+					try {
+						partition.gc();
+					} catch (Exception e) {
+						log.error(e.getMessage(), e);
 					}
 				}
-
-				_lockPost.lock();
-				try {
-					_urlUpdates.clear();
-					_urlUpdates = newUrlUpdates;
-				} finally {
-					_lockPost.unlock();
+			});
+			partition.schedule.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					drainPartition(partition);
+					partition.checkpoint();
 				}
-			}
-		}, 10, syncinterval, TimeUnit.SECONDS);
+			}, 1, 1, TimeUnit.SECONDS);
+		}
+		log.info("Solr update queue partitions:" + queuePartitions + ",partitionBy:" + queuePartitionBy + ",asyncEnqueue:"
+		    + asyncEnqueue + (asyncEnqueue ? ",ringCapacity:" + ringCapacity + ",ringFullPolicy:" + ringFullPolicy : ""));
 
-		//ʼIBigQueue
-		_bqUpdate = new BigQueueImpl(queueDir, sanitizeFilename("hbase_solr_update"), BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
-		_bqUpdate.gc();
-		_scheduleSolrUpdate.scheduleWithFixedDelay(new Runnable() {
+		_bqDelete = new BigQueueImpl(queueDir, sanitizeFilename("hbase_solr_delete"), BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		_scheduleSolrDelete.execute(new Runnable() {
 			@Override
-			public void run() { //solr
-				byte[] data;
+			public void run() {
 				try {
-					while ((data = _bqUpdate.dequeue()) != null) {
-						JsonObject doc = new JsonObject(new String(data, SolrTools.UTF_8));
-						try {
-							solrUpdate(doc);
-						} catch (Exception e) {
-							_bqUpdate.enqueue(data); //·ŻBigQueue,Ȼѭ!
-							log.error(e.getMessage(), e);
-							break;
-						}
-					}
-
-					if ((Calendar.getInstance().get(Calendar.HOUR_OF_DAY) % 24) == 3) { //ÿ3ִ,ɾõhbase_solr_updateļ
-						_bqUpdate.gc();
-					}
+					_bqDelete.gc();
 				} catch (Exception e) {
 					log.error(e.getMessage(), e);
 				}
 			}
-		}, 1, 1, TimeUnit.SECONDS);
-
-		_bqDelete = new BigQueueImpl(queueDir, sanitizeFilename("hbase_solr_delete"), BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
-		_bqDelete.gc();
+		});
 		_scheduleSolrDelete.scheduleWithFixedDelay(new Runnable() {
 			@Override
-			public void run() { //solrɾ
+			public void run() { //向solr删除数据
+				if (_senders == null) { //还没有连上Solr
+					return;
+				}
 				byte[] data;
 				try {
-					while ((data = _bqDelete.dequeue()) != null) {
+					while ((data = _codec.decode(_bqDelete.dequeue())) != null) {
 						JsonObject doc = new JsonObject(new String(data, SolrTools.UTF_8));
 						try {
-							solrDelete(doc);
+							solrDelete(null, doc); //旧数据是按query删除的,不能按shard路由
+							_commitPolicy.onSent(1);
 						} catch (Exception e) {
-							_bqDelete.enqueue(data); //·ŻBigQueue,Ȼѭ!
+							if (SolrResponseException.isPermanent(e) && _deadLetters != null) { //删除条件本身有错,重试也没用
+								_deadLetters.add(SolrCoalescer.idOf(doc), doc, (SolrResponseException) e, -1, 0, queuePartitionBy);
+								continue;
+							}
+							_bqDelete.enqueue(_codec.encode(data)); //发生错误后重新放回BigQueue,然后跳出循环!
 							log.error(e.getMessage(), e);
 							break;
 						}
 					}
 
-					if ((Calendar.getInstance().get(Calendar.HOUR_OF_DAY) % 24) == 4) { //ÿ4ִ,ɾõhbase_solr_deleteļ
+					if ((Calendar.getInstance().get(Calendar.HOUR_OF_DAY) % 24) == 4) { //每天4点执行,删除不用的hbase_solr_delete文件
 						_bqDelete.gc();
 					}
 				} catch (Exception e) {
@@ -342,154 +1122,280 @@ public class SolrRegionObserver extends BaseRegionObserver {
 				}
 			}
 		}, 1, 1, TimeUnit.SECONDS);
-
-		log.info("STARTED: " + SolrRegionObserver.class.getName());
 	}
 
 	@Override
 	public void stop(CoprocessorEnvironment e) throws IOException {
+		stop();
+	}
+
+	void stop() throws IOException {
 		synchronized (SolrRegionObserver.class) {
 			_startCount--;
-			if (_startCount > 0) { //
+			if (_startCount > 0) { //还有引用
 				return;
 			}
 		}
 
-		this.destroy(e);
+		this.destroy();
 	}
 
 	public void destroy(CoprocessorEnvironment e) throws IOException {
+		destroy();
+	}
+
+	private void destroy() throws IOException {
 		_scheduleSync.shutdown();
-		_scheduleSolrUpdate.shutdown();
+		if (_zkState != null) {
+			_zkState.close();
+		}
+		if (_partitions != null) {
+			for (SolrQueuePartition partition : _partitions) {
+				partition.schedule.shutdown();
+			}
+			for (SolrQueuePartition partition : _partitions) {
+				try {
+					partition.schedule.awaitTermination(readTimeout, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ex) {
+					break;
+				}
+			}
+		}
 		_scheduleSolrDelete.shutdown();
+		if (_senders != null) {
+			for (java.util.concurrent.ExecutorService sender : _senders) {
+				sender.shutdown();
+			}
+			for (java.util.concurrent.ExecutorService sender : _senders) {
+				try {
+					sender.awaitTermination(readTimeout, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ex) {
+					break;
+				}
+			}
+		}
+
+		if (_commitPolicy != null) {
+			_commitPolicy.close();
+		}
 
-		if (_bqUpdate != null) {
+		if (_partitions != null) {
+			for (SolrQueuePartition partition : _partitions) {
+				try {
+					partition.close();
+				} catch (Exception ex) {
+					log.error(ex.getMessage(), ex);
+				}
+			}
+		}
+
+		if (_bqDelete != null) {
 			try {
-				_bqUpdate.close();
+				_bqDelete.close();
 			} catch (Exception ex) {
 				log.error(ex.getMessage(), ex);
 			}
 		}
 
-		if (_bqDelete != null) {
+		if (_deadLetters != null) {
 			try {
-				_bqDelete.close();
+				_deadLetters.close();
 			} catch (Exception ex) {
 				log.error(ex.getMessage(), ex);
 			}
 		}
 
+		SolrTools.getTransport().close();
+
 		log.info("STOPD: " + SolrRegionObserver.class.getName());
 	}
 
+	/**
+	 * 无效值的处理是reject时,在写入之前拒绝有无效值的Put,客户端不会重试
+	 */
 	@Override
-	public void postPut(ObserverContext<RegionCoprocessorEnvironment> e, Put put, WALEdit edit, Durability durability)
+	public void prePut(ObserverContext<RegionCoprocessorEnvironment> e, Put put, WALEdit edit, Durability durability)
 	    throws IOException {
 		String tableName = e.getEnvironment().getRegion().getRegionInfo().getTable().getNameAsString();
-		if (tableName.startsWith("hbase:")) { //Ԫݱ,!
+		if (tableName.startsWith("hbase:")) { //元数据表,忽略!
 			return;
 		}
-		String rowKey = Bytes.toString(put.getRow());
 
-		String cFamily = null;
-		String cQualifier = null;
-		String cValue = null;
-		NavigableMap<byte[], List<Cell>> map = put.getFamilyCellMap();
-		JsonObject jsonSet = new JsonObject();
-		for (List<Cell> cells : map.values()) {
-			for (Cell cell : cells) {
-				cFamily = new String(CellUtil.cloneFamily(cell));
-				cQualifier = new String(CellUtil.cloneQualifier(cell));
-				cValue = new String(CellUtil.cloneValue(cell), SolrTools.UTF_8);
-				if (cQualifier.endsWith("_s")) { //string
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putString("set", cValue));
-				} else if (cQualifier.endsWith("_t")) { //text_general
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putString("set", cValue));
-				} else if (cQualifier.endsWith("_dt")) { //date
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putString("set", cValue));
-				} else if (cQualifier.endsWith("_i")) { //int
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putNumber("set", Integer.valueOf(cValue)));
-				} else if (cQualifier.endsWith("_l")) { //long
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putNumber("set", Long.valueOf(cValue)));
-				} else if (cQualifier.endsWith("_f")) { //float
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putNumber("set", Float.valueOf(cValue)));
-				} else if (cQualifier.endsWith("_d")) { //double
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putNumber("set", Double.valueOf(cValue)));
-				} else if (cQualifier.endsWith("_b")) { //boolean
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putBoolean("set", Boolean.valueOf(cValue)));
-				} else { //Ҫ,!
-					continue;
-				}
-			}
+		String error = _mapping.validate(tableName, put);
+		if (error != null) {
+			throw new DoNotRetryIOException(error + ",row:" + Bytes.toStringBinary(put.getRow()));
+		}
+	}
+
+	@Override
+	public void postPut(ObserverContext<RegionCoprocessorEnvironment> e, Put put, WALEdit edit, Durability durability)
+	    throws IOException {
+		if (batchMutate) { //在postBatchMutate里处理
+			return;
 		}
-		if (jsonSet.size() == 0) { //˵ûsolrѯֶ
+		String tableName = e.getEnvironment().getRegion().getRegionInfo().getTable().getNameAsString();
+		if (tableName.startsWith("hbase:")) { //元数据表,忽略!
 			return;
 		}
 
-		jsonSet.putString(F_ID, tableName + F_SEPARATOR + rowKey);
-		jsonSet.putObject(F_TABLENAME, (new JsonObject()).putString("set", tableName));
-		jsonSet.putObject(F_ROWKEY, (new JsonObject()).putString("set", rowKey));
-		jsonSet.putObject(F_UPDATETIME, (new JsonObject()).putString("set", SolrTools.solrDateFormat.format(new java.util.Date())));
-
-		log.debug("postPut!!! " + jsonSet.encode());
-		_bqUpdate.enqueue(jsonSet.encode().getBytes(SolrTools.UTF_8));
+		SolrQueuePartition partition = getPartition(tableName, put.getRow());
+		byte[] data = buildPutRecord(partition.getDictionary(), tableName, put);
+		if (data == null) { //说明没有solr查询字段
+			return;
+		}
+		partition.enqueue(data);
 	}
 
 	@Override
 	public void postDelete(ObserverContext<RegionCoprocessorEnvironment> e, Delete delete, WALEdit edit,
 	    Durability durability) throws IOException {
+		if (batchMutate) { //在postBatchMutate里处理
+			return;
+		}
 		String tableName = e.getEnvironment().getRegion().getRegionInfo().getTable().getNameAsString();
-		if (tableName.startsWith("hbase:")) { //Ԫݱ,!
+		if (tableName.startsWith("hbase:")) { //元数据表,忽略!
 			return;
 		}
-		String rowKey = new String(delete.getRow());
 
-		String cFamily = null;
-		String cQualifier = null;
-		NavigableMap<byte[], List<Cell>> map = delete.getFamilyCellMap();
-		JsonObject jsonSet = new JsonObject();
+		SolrQueuePartition partition = getPartition(tableName, delete.getRow());
+		byte[] data = buildDeleteRecord(partition.getDictionary(), tableName, delete, e.getEnvironment().getRegion()
+		    .getTableDesc().getFamilies().size());
+		if (data == null) { //说明不是删除行,也没有solr字段
+			return;
+		}
+		partition.enqueue(data); //行删除和更新放在同一个队列里,才能保证先后顺序
+	}
+
+	/**
+	 * 把整个mini-batch里成功的Put和Delete转换成记录,每个分区只入队一次
+	 */
+	@Override
+	public void postBatchMutate(ObserverContext<RegionCoprocessorEnvironment> e,
+	    MiniBatchOperationInProgress<Mutation> miniBatchOp) throws IOException {
+		if (!batchMutate) {
+			return;
+		}
+		String tableName = e.getEnvironment().getRegion().getRegionInfo().getTable().getNameAsString();
+		if (tableName.startsWith("hbase:")) { //元数据表,忽略!
+			return;
+		}
+		int numFamilies = e.getEnvironment().getRegion().getTableDesc().getFamilies().size();
+
+		SolrQueuePartition[] partitions = _partitions;
+		List<byte[]>[] records = null;
+		for (int i = 0; i < miniBatchOp.size(); i++) {
+			OperationStatusCode code = miniBatchOp.getOperationStatus(i).getOperationStatusCode();
+			if (code != OperationStatusCode.SUCCESS && code != OperationStatusCode.NOT_RUN) { //失败的操作
+				continue;
+			}
+
+			Mutation mutation = miniBatchOp.getOperation(i);
+			SolrQueuePartition partition = getPartition(tableName, mutation.getRow());
+			byte[] data;
+			if (mutation instanceof Put) {
+				data = buildPutRecord(partition.getDictionary(), tableName, (Put) mutation);
+			} else if (mutation instanceof Delete) {
+				data = buildDeleteRecord(partition.getDictionary(), tableName, (Delete) mutation, numFamilies);
+			} else {
+				continue;
+			}
+			if (data == null) {
+				continue;
+			}
+
+			if (records == null) {
+				records = newRecordLists(partitions.length);
+			}
+			records[partition.index].add(data);
+		}
+		if (records == null) {
+			return;
+		}
+
+		for (int i = 0; i < records.length; i++) {
+			if (records[i].size() == 1) {
+				partitions[i].enqueue(records[i].get(0));
+			} else if (records[i].size() > 1) {
+				partitions[i].enqueue(SolrRecord.packBatch(records[i]));
+			}
+		}
+		if (log.isDebugEnabled()) {
+			log.debug("postBatchMutate!!! " + tableName + ",operations:" + miniBatchOp.size());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<byte[]>[] newRecordLists(int n) {
+		List<byte[]>[] lists = new List[n];
+		for (int i = 0; i < n; i++) {
+			lists[i] = new java.util.ArrayList<byte[]>();
+		}
+		return lists;
+	}
+
+	/**
+	 * 把Put转换成记录,没有solr查询字段时返回null
+	 */
+	byte[] buildPutRecord(SolrDictionary dict, String tableName, Put put) throws IOException {
+		NavigableMap<byte[], List<Cell>> map = put.getFamilyCellMap();
+		SolrRecordBuilder builder = _builder.get().reset(dict, SolrRecord.OP_PUT, tableName, put.getRow(),
+		    System.currentTimeMillis());
 		for (List<Cell> cells : map.values()) {
 			for (Cell cell : cells) {
-				cFamily = new String(CellUtil.cloneFamily(cell));
-				cQualifier = new String(CellUtil.cloneQualifier(cell));
-				if (cQualifier.endsWith("_s")) { //string
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putString("set", null));
-				} else if (cQualifier.endsWith("_t")) { //text_general
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putString("set", null));
-				} else if (cQualifier.endsWith("_dt")) { //date
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putString("set", null));
-				} else if (cQualifier.endsWith("_i")) { //int
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putString("set", null));
-				} else if (cQualifier.endsWith("_l")) { //long
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putString("set", null));
-				} else if (cQualifier.endsWith("_f")) { //float
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putString("set", null));
-				} else if (cQualifier.endsWith("_d")) { //double
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putString("set", null));
-				} else if (cQualifier.endsWith("_b")) { //boolean
-					jsonSet.putObject(cFamily + F_SEPARATOR + cQualifier, (new JsonObject()).putString("set", null));
-				} else { //Ҫ,!
+				SolrFieldMapping.Field field = _mapping.getField(tableName, cell);
+				if (field == null) { //不是需要的类型,跳出!
 					continue;
 				}
+				field.add(builder, cell);
 			}
 		}
-		if (jsonSet.size() == 0) { //˵ûsolrֶ
-			if (delete.numFamilies() == e.getEnvironment().getRegion().getTableDesc().getFamilies().size()) { //˵ɾ
-				JsonObject jsonDel = new JsonObject();
-				jsonDel.putObject("delete", (new JsonObject()).putString("query", F_ID + ":\"" + tableName + F_SEPARATOR + rowKey + "\""));
+		if (builder.fields() == 0) { //说明没有solr查询字段
+			return null;
+		}
 
-				log.debug("postDelete!!! Row:" + jsonDel.encode());
+		byte[] data = builder.toByteArray();
+		if (log.isDebugEnabled()) {
+			log.debug("postPut!!! " + tableName + F_SEPARATOR + Bytes.toString(put.getRow()) + ",fields:" + builder.fields()
+			    + ",bytes:" + data.length);
+		}
+		return data;
+	}
 
-				_bqDelete.enqueue(jsonDel.encode().getBytes(SolrTools.UTF_8));
-			} else { //˵ɾ
-				return;
+	/**
+	 * 把Delete转换成记录: 删除了solr字段时把字段设成null,删除整行时删除Solr文档,否则返回null
+	 * 
+	 * @param numFamilies
+	 *          - 表的列族数
+	 */
+	byte[] buildDeleteRecord(SolrDictionary dict, String tableName, Delete delete, int numFamilies)
+	    throws IOException {
+		NavigableMap<byte[], List<Cell>> map = delete.getFamilyCellMap();
+		SolrRecordBuilder builder = _builder.get().reset(dict, SolrRecord.OP_DELETE_COLUMNS, tableName, delete.getRow(),
+		    System.currentTimeMillis());
+		for (List<Cell> cells : map.values()) {
+			for (Cell cell : cells) {
+				SolrFieldMapping.Field field = _mapping.getField(tableName, cell);
+				if (field == null) { //不是需要的类型,跳出!
+					continue;
+				}
+				builder.addNull(field.name);
 			}
-		} else {
-			jsonSet.putString(F_ID, tableName + F_SEPARATOR + rowKey);
-			jsonSet.putObject(F_UPDATETIME, (new JsonObject()).putString("set", SolrTools.solrDateFormat.format(new java.util.Date())));
+		}
+		if (builder.fields() == 0) { //说明没有solr字段
+			if (delete.numFamilies() == numFamilies) { //说明是删除行
+				log.debug("postDelete!!! Row:" + tableName + F_SEPARATOR + Bytes.toString(delete.getRow()));
 
-			log.debug("postDelete!!! Column:" + jsonSet.encode());
-			_bqUpdate.enqueue(jsonSet.encode().getBytes(SolrTools.UTF_8));
+				return builder.reset(dict, SolrRecord.OP_DELETE_ROW, tableName, delete.getRow(), 0).toByteArray();
+			} else { //说明不是删除行
+				return null;
+			}
+		} else {
+			byte[] data = builder.toByteArray();
+			if (log.isDebugEnabled()) {
+				log.debug("postDelete!!! Column:" + tableName + F_SEPARATOR + Bytes.toString(delete.getRow()) + ",fields:"
+				    + builder.fields());
+			}
+			return data;
 		}
 	}
 }
@@ -0,0 +1,147 @@
+package wjw.hbase.solr;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.hbase.CellUtil;
+import org.apache.hadoop.hbase.KeyValue;
+import org.apache.hadoop.hbase.TableName;
+import org.apache.hadoop.hbase.client.Delete;
+import org.apache.hadoop.hbase.client.HBaseAdmin;
+import org.apache.hadoop.hbase.client.Mutation;
+import org.apache.hadoop.hbase.client.Put;
+import org.apache.hadoop.hbase.regionserver.wal.HLog;
+import org.apache.hadoop.hbase.regionserver.wal.WALEdit;
+import org.apache.hadoop.hbase.replication.BaseReplicationEndpoint;
+import org.apache.log4j.Logger;
+
+/**
+ * 从RegionServer的WAL读取要索引的数据(作为HBase复制的一个peer),不经过RPC写路径,也不需要本地BigQueue.
+ * WAL的读取位置由HBase的复制框架保存,replicate()返回false时这批数据会重新发送.
+ * 字段的映射和SolrRegionObserver的postPut/postDelete完全一样.
+ * 需要HBase 0.98.10以上(HBASE-11992加入了ReplicationEndpoint),更早的0.98版本只能使用SolrRegionObserver.
+ */
+public class SolrReplicationEndpoint extends BaseReplicationEndpoint {
+	private static Logger log = Logger.getLogger(SolrReplicationEndpoint.class);
+
+	private final SolrRegionObserver _indexer = new SolrRegionObserver();
+	private final ConcurrentHashMap<String, Integer> _numFamilies = new ConcurrentHashMap<String, Integer>(); //表的列族数
+	private SolrDictionary _dict;
+	private HBaseAdmin _admin;
+	private UUID _peerUUID;
+
+	@Override
+	public void init(Context context) throws IOException {
+		super.init(context);
+		_peerUUID = UUID.nameUUIDFromBytes(("solr:" + context.getPeerId()).getBytes(SolrTools.UTF_8));
+	}
+
+	@Override
+	public UUID getPeerUUID() {
+		return _peerUUID;
+	}
+
+	@Override
+	protected void doStart() {
+		try {
+			_indexer.start(ctx.getConfiguration(), false);
+			_dict = SolrDictionary.open(SolrRegionObserver.getQueueDir(), "hbase_solr_wal");
+			_admin = new HBaseAdmin(ctx.getConfiguration());
+			notifyStarted();
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+			notifyFailed(e);
+		}
+	}
+
+	@Override
+	protected void doStop() {
+		try {
+			if (_admin != null) {
+				_admin.close();
+			}
+			if (_dict != null) {
+				_dict.close();
+			}
+			_indexer.stop();
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+		}
+		notifyStopped();
+	}
+
+	@Override
+	public boolean replicate(ReplicateContext replicateContext) {
+		try {
+			SolrCoalescer coalescer = new SolrCoalescer();
+			for (HLog.Entry entry : replicateContext.getEntries()) {
+				String tableName = entry.getKey().getTablename().getNameAsString();
+				if (tableName.startsWith("hbase:")) { //元数据表,忽略!
+					continue;
+				}
+
+				Mutation mutation = null; //同一行连续的Put或者Delete合成一个Mutation
+				for (KeyValue kv : entry.getEdit().getKeyValues()) {
+					if (CellUtil.matchingFamily(kv, WALEdit.METAFAMILY)) { //WAL里的compaction等标记
+						continue;
+					}
+					boolean isDelete = kv.isDelete();
+					if (mutation == null || !CellUtil.matchingRow(kv, mutation.getRow()) || (mutation instanceof Delete) != isDelete) {
+						addMutation(coalescer, tableName, mutation);
+						mutation = isDelete ? new Delete(kv.getRow()) : new Put(kv.getRow());
+					}
+					if (isDelete) {
+						((Delete) mutation).addDeleteMarker(kv);
+					} else {
+						((Put) mutation).add(kv);
+					}
+				}
+				addMutation(coalescer, tableName, mutation);
+			}
+			_dict.flush(); //这一批里的新名字写进字典,之后的记录使用编号
+			if (coalescer.isEmpty()) {
+				return true;
+			}
+
+			List<SolrRecord> failed = _indexer.solrShip(coalescer, null); //不经过本地队列
+			if (failed.size() > 0) {
+				log.warn("replicate to Solr failed, " + failed.size() + " of " + coalescer.count() + " records, will retry");
+				return false;
+			}
+			return true;
+		} catch (Exception e) {
+			log.error(e.getMessage(), e);
+			return false;
+		}
+	}
+
+	private void addMutation(SolrCoalescer coalescer, String tableName, Mutation mutation) throws IOException {
+		if (mutation == null) {
+			return;
+		}
+
+		byte[] data;
+		if (mutation instanceof Put) {
+			data = _indexer.buildPutRecord(_dict, tableName, (Put) mutation);
+		} else {
+			data = _indexer.buildDeleteRecord(_dict, tableName, (Delete) mutation, getNumFamilies(tableName));
+		}
+		if (data != null) {
+			coalescer.add(SolrRecord.parse(data, _dict));
+		}
+	}
+
+	/**
+	 * 表的列族数,用来判断Delete是不是删除整行
+	 */
+	private int getNumFamilies(String tableName) throws IOException {
+		Integer numFamilies = _numFamilies.get(tableName);
+		if (numFamilies == null) {
+			numFamilies = _admin.getTableDescriptor(TableName.valueOf(tableName)).getFamilies().size();
+			_numFamilies.put(tableName, numFamilies);
+		}
+		return numFamilies;
+	}
+}
@@ -0,0 +1,48 @@
+package wjw.hbase.solr;
+
+import java.io.IOException;
+
+import org.wjw.efjson.JsonObject;
+
+/**
+ * Solr应答了请求,但是responseHeader.status不为0.
+ * 400(文档本身有错,比如数值字段的值不是数字)和413(请求太大)是永久错误,重发多少次结果都一样;其他的可以重试.
+ */
+class SolrResponseException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	final int status;
+	final JsonObject response;
+
+	SolrResponseException(JsonObject response) {
+		super(response.encodePrettily());
+		this.status = SolrTools.getStatus(response);
+		this.response = response;
+	}
+
+	/**
+	 * 是不是永久错误
+	 */
+	boolean isPermanent() {
+		return isPermanent(status);
+	}
+
+	static boolean isPermanent(int status) {
+		return status == 400 || status == 413;
+	}
+
+	/**
+	 * Solr返回的错误信息,没有时返回整个应答
+	 */
+	String getErrorMessage() {
+		JsonObject error = response.getObject("error");
+		if (error != null && error.getString("msg") != null) {
+			return error.getString("msg");
+		}
+		return response.encode();
+	}
+
+	static boolean isPermanent(Throwable e) {
+		return e instanceof SolrResponseException && ((SolrResponseException) e).isPermanent();
+	}
+}
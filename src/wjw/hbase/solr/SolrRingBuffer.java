@@ -0,0 +1,101 @@
+package wjw.hbase.solr;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 有界的多生产者单消费者环形缓冲区(Disruptor的做法): 生产者用CAS认领序号,写入后在槽位上发布序号;
+ * 消费者按序号顺序读取已经发布的槽位.不加锁,满了时offer()返回false,由调用者决定怎么处理.
+ */
+class SolrRingBuffer {
+	private final int _mask;
+	private final byte[][] _entries;
+	private final AtomicLongArray _published; //每个槽位上已经发布的序号
+	private final AtomicLong _tail = new AtomicLong(0); //下一个要认领的序号
+	private volatile long _head = 0; //下一个要消费的序号,只有消费者修改
+
+	/**
+	 * @param capacity
+	 *          - 容量,向上取整为2的幂
+	 */
+	SolrRingBuffer(int capacity) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		_mask = size - 1;
+		_entries = new byte[size][];
+		_published = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			_published.set(i, -1);
+		}
+	}
+
+	int capacity() {
+		return _entries.length;
+	}
+
+	/**
+	 * 当前的记录数(近似值)
+	 */
+	int size() {
+		return (int) (_tail.get() - _head);
+	}
+
+	/**
+	 * 已经认领的序号数,小于它的序号都已经或者马上会被发布
+	 */
+	long claimed() {
+		return _tail.get();
+	}
+
+	/**
+	 * 已经消费的序号数
+	 */
+	long consumed() {
+		return _head;
+	}
+
+	/**
+	 * 放入一条记录,满了时返回false
+	 */
+	boolean offer(byte[] data) {
+		while (true) {
+			long seq = _tail.get();
+			if (seq - _head >= _entries.length) {
+				return false;
+			}
+			if (_tail.compareAndSet(seq, seq + 1)) {
+				int idx = (int) seq & _mask;
+				_entries[idx] = data;
+				_published.lazySet(idx, seq); //发布,消费者看到序号后一定能看到数据
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * 取出最多max条已经发布的记录,只能由一个消费者调用(或者调用者保证互斥)
+	 *
+	 * @return 取出的记录数
+	 */
+	int drainTo(List<byte[]> out, int max) {
+		long head = _head;
+		int count = 0;
+		while (count < max) {
+			int idx = (int) head & _mask;
+			if (_published.get(idx) != head) { //还没有发布
+				break;
+			}
+			out.add(_entries[idx]);
+			_entries[idx] = null;
+			head++;
+			count++;
+		}
+		if (count > 0) {
+			_head = head;
+		}
+		return count;
+	}
+}
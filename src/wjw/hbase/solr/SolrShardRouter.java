@@ -0,0 +1,257 @@
+package wjw.hbase.solr;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.wjw.efjson.JsonArray;
+import org.wjw.efjson.JsonObject;
+
+/**
+ * 根据Solr集群状态里每个shard的hash范围和leader,在客户端用compositeId(murmur3)算出id所属的shard,
+ * 把文档直接发给shard的leader,其他副本只做备用.
+ */
+class SolrShardRouter {
+	/**
+	 * 一个shard
+	 */
+	static class Shard {
+		final String name;
+		final int min; //hash范围(包含)
+		final int max; //hash范围(包含)
+		final List<String> urlUpdates; //leader在最前面,后面是其他活动的副本
+
+		Shard(String name, int min, int max, List<String> urlUpdates) {
+			this.name = name;
+			this.min = min;
+			this.max = max;
+			this.urlUpdates = Collections.unmodifiableList(urlUpdates);
+		}
+
+		boolean includes(int hash) {
+			return hash >= min && hash <= max;
+		}
+
+		@Override
+		public String toString() {
+			return name + "[" + Integer.toHexString(min) + "-" + Integer.toHexString(max) + "]" + urlUpdates;
+		}
+	}
+
+	private final List<Shard> _shards;
+
+	private SolrShardRouter(List<Shard> shards) {
+		_shards = shards;
+	}
+
+	/**
+	 * 根据SolrTools.getClusterState()的返回结果建立路由表,不是compositeId路由或者没有hash范围时返回null
+	 */
+	static SolrShardRouter build(JsonArray stateArray, String coreName) {
+		Map<String, List<JsonObject>> nodesByShard = new LinkedHashMap<String, List<JsonObject>>();
+		for (int i = 0; i < stateArray.size(); i++) {
+			JsonObject jNode = stateArray.<JsonObject> get(i);
+			String shard = jNode.getString(SolrTools.F_SHARD);
+			String range = jNode.getString(SolrTools.F_RANGE);
+			String router = jNode.getString(SolrTools.F_ROUTER, "compositeId");
+			if (shard == null || range == null || !router.equals("compositeId")) {
+				return null;
+			}
+			List<JsonObject> nodes = nodesByShard.get(shard);
+			if (nodes == null) {
+				nodes = new ArrayList<JsonObject>();
+				nodesByShard.put(shard, nodes);
+			}
+			nodes.add(jNode);
+		}
+
+		List<Shard> shards = new ArrayList<Shard>(nodesByShard.size());
+		for (Map.Entry<String, List<JsonObject>> entry : nodesByShard.entrySet()) {
+			List<String> urls = new ArrayList<String>();
+			String range = null;
+			for (JsonObject jNode : entry.getValue()) {
+				range = jNode.getString(SolrTools.F_RANGE);
+				String state = jNode.getString("state");
+				if (!state.equalsIgnoreCase("active") && !state.equalsIgnoreCase("recovering")) {
+					continue;
+				}
+				String core = jNode.getString("core", coreName);
+				String url = jNode.getString("base_url") + "/" + core + "/update";
+				if ("true".equals(jNode.getString("leader")) && state.equalsIgnoreCase("active")) {
+					urls.add(0, url);
+				} else {
+					urls.add(url);
+				}
+			}
+			if (urls.isEmpty()) {
+				continue;
+			}
+
+			int idx = range.indexOf('-');
+			int min = (int) Long.parseLong(range.substring(0, idx), 16);
+			int max = (int) Long.parseLong(range.substring(idx + 1), 16);
+			shards.add(new Shard(entry.getKey(), min, max, urls));
+		}
+		return new SolrShardRouter(shards);
+	}
+
+	public int size() {
+		return _shards.size();
+	}
+
+	/**
+	 * 返回id所属的shard,找不到时返回null
+	 */
+	public Shard route(String id) {
+		int hash = sliceHash(id);
+		for (Shard shard : _shards) {
+			if (shard.includes(hash)) {
+				return shard;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return _shards.toString();
+	}
+
+	/**
+	 * 和Solr的CompositeIdRouter(KeyParser)一样的算法: "a!b"这样的id,a的hash占高16位,b的hash占低16位; "a!b!c"是8/8/16位;
+	 * 前缀可以用"a/n!"指定占用的位数.只看前两个'!',以'!'结尾时最后一部分是空字符串,"a!!"和"a!"一样是两级(SOLR-6257).
+	 */
+	static int sliceHash(String id) {
+		int first = id.indexOf('!');
+		if (first < 0) {
+			return murmurhash3_x86_32(id);
+		}
+
+		List<String> parts = new ArrayList<String>(3);
+		parts.add(id.substring(0, first));
+		int last = id.length() - 1;
+		if (first < last) {
+			int second = id.indexOf('!', first + 1);
+			if (second < 0) {
+				parts.add(id.substring(first + 1));
+			} else if (second == last) {
+				if (first < second - 1) {
+					parts.add(id.substring(first + 1, second));
+				}
+			} else {
+				parts.add(id.substring(first + 1, second));
+				parts.add(id.substring(second + 1));
+			}
+		}
+		int pieces = parts.size();
+		if (id.endsWith("!") && pieces < 3) {
+			pieces++;
+		}
+
+		boolean triLevel = pieces == 3;
+		int[] bits = triLevel ? new int[] { 8, 8 } : new int[] { 16, 0 };
+		int[] hashes = new int[pieces];
+		for (int i = 0; i < pieces; i++) {
+			String part = i < parts.size() ? parts.get(i) : ""; //以'!'结尾的id最后一部分是空字符串
+			if (i < pieces - 1) {
+				int idx = part.indexOf('/');
+				if (idx > 0) {
+					bits[i] = getBits(part, idx);
+					part = part.substring(0, idx);
+				}
+			}
+			hashes[i] = murmurhash3_x86_32(part);
+		}
+
+		//和Solr一样直接移位,位数无效(-1)时的掩码也相同
+		int[] masks = new int[pieces];
+		masks[0] = bits[0] == 0 ? 0 : (-1 << (32 - bits[0]));
+		if (triLevel) {
+			int bits01 = bits[0] + bits[1];
+			masks[1] = masks[0] ^ (bits01 == 0 ? 0 : (-1 << (32 - bits01)));
+			masks[2] = bits01 == 32 ? 0 : ~(masks[0] | masks[1]);
+		} else {
+			masks[1] = bits[0] == 32 ? 0 : (-1 >>> bits[0]);
+		}
+
+		int result = hashes[0] & masks[0];
+		for (int i = 1; i < pieces; i++) {
+			result = result | (hashes[i] & masks[i]);
+		}
+		return result;
+	}
+
+	/**
+	 * "a/n"里'/'后面的位数,不是数字或者大于32时返回-1
+	 */
+	private static int getBits(String part, int idx) {
+		int bits = 0;
+		for (int i = idx + 1; i < part.length(); i++) {
+			char c = part.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			bits = bits * 10 + (c - '0');
+		}
+		return bits > 32 ? -1 : bits;
+	}
+
+	/**
+	 * 对字符串的UTF-8编码计算murmur3 x86 32位hash,seed为0
+	 */
+	static int murmurhash3_x86_32(String s) {
+		byte[] data;
+		try {
+			data = s.getBytes(SolrTools.UTF_8);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+		return murmurhash3_x86_32(data, 0, data.length, 0);
+	}
+
+	static int murmurhash3_x86_32(byte[] data, int offset, int len, int seed) {
+		final int c1 = 0xcc9e2d51;
+		final int c2 = 0x1b873593;
+
+		int h1 = seed;
+		int roundedEnd = offset + (len & 0xfffffffc); //4字节对齐
+
+		for (int i = offset; i < roundedEnd; i += 4) {
+			int k1 = (data[i] & 0xff) | ((data[i + 1] & 0xff) << 8) | ((data[i + 2] & 0xff) << 16) | (data[i + 3] << 24);
+			k1 *= c1;
+			k1 = (k1 << 15) | (k1 >>> 17);
+			k1 *= c2;
+
+			h1 ^= k1;
+			h1 = (h1 << 13) | (h1 >>> 19);
+			h1 = h1 * 5 + 0xe6546b64;
+		}
+
+		int k1 = 0;
+		switch (len & 0x03) {
+		case 3:
+			k1 = (data[roundedEnd + 2] & 0xff) << 16;
+		case 2:
+			k1 |= (data[roundedEnd + 1] & 0xff) << 8;
+		case 1:
+			k1 |= (data[roundedEnd] & 0xff);
+			k1 *= c1;
+			k1 = (k1 << 15) | (k1 >>> 17);
+			k1 *= c2;
+			h1 ^= k1;
+		}
+
+		h1 ^= len;
+
+		h1 ^= h1 >>> 16;
+		h1 *= 0x85ebca6b;
+		h1 ^= h1 >>> 13;
+		h1 *= 0xc2b2ae35;
+		h1 ^= h1 >>> 16;
+
+		return h1;
+	}
+}
@@ -1,12 +1,7 @@
 package wjw.hbase.solr;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.ConnectException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.util.Arrays;
 import java.util.Collections;
@@ -17,7 +12,7 @@ import org.wjw.efjson.JsonArray;
 import org.wjw.efjson.JsonObject;
 
 abstract class SolrTools {
-	static final String UTF_8 = "UTF-8"; //HTTPַ
+	static final String UTF_8 = "UTF-8"; //HTTP请求字符集
 	static final String LOGDateFormatPattern = "yyyy-MM-dd'T'HH:mm:ss'Z'";
 	static final SafeSimpleDateFormat solrDateFormat = new SafeSimpleDateFormat(LOGDateFormatPattern);
 
@@ -29,24 +24,44 @@ abstract class SolrTools {
 	static final String F_ID = "id";
 	static final String F_VERSION = "_version_";
 
+	static final String F_SHARD = "shard"; //getClusterState()给每个节点加上的所属shard名字
+	static final String F_RANGE = "range"; //getClusterState()给每个节点加上的所属shard的hash范围
+	static final String F_ROUTER = "router"; //getClusterState()给每个节点加上的集合的路由方式
+
 	static {
 		System.setProperty("http.keepAlive", "true");
 		System.setProperty("http.maxConnections", "200");
 		System.setProperty("sun.net.http.errorstream.enableBuffering", "true");
-		System.setProperty("sun.net.http.retryPost", "false");  //HttpURLConnectionSocketTimeoutException쳣ʱԼBUG!
+		System.setProperty("sun.net.http.retryPost", "false");  //解决HttpURLConnection当发生SocketTimeoutException异常时的自己重试BUG!
 	}
 	
+	private static volatile SolrTransport _transport = new UrlConnectionSolrTransport(); //发送HTTP请求的实现
+
+	static final int GZIP_MIN_BYTES = 1024; //小于这个大小的请求体不压缩
+	private static volatile boolean _gzipRequests = false; //是否用gzip压缩POST的请求体
+
 	private SolrTools() {
 		//
 	}
 
+	static SolrTransport getTransport() {
+		return _transport;
+	}
+
+	static void setTransport(SolrTransport transport) {
+		SolrTransport old = _transport;
+		_transport = transport;
+		if (old != null && old != transport) {
+			old.close();
+		}
+	}
+
 	public static String sanitizeFilename(String unsanitized) {
 		return unsanitized.replaceAll("[\\?\\\\/:|<>\\*]", " ") // filter out ? \ / : | < > *
 		    .replaceAll("\\s", "_"); // white space as underscores
 	}
 
-	@SuppressWarnings("unchecked")
-	//صĸʽ:[
+	//返回的格式是:[
 	//  {"state":"active","base_url":"http://192.168.0.143:8983/solr","core":"collection1","node_name":"192.168.0.143:8983_solr","leader":"true"}
 	//  ,{"state":"active","base_url":"http://192.168.0.147:8983/solr","core":"collection1","node_name":"192.168.0.147:8983_solr"}
 	//  ,{"state":"active","base_url":"http://192.168.0.118:8983/solr","core":"collection1","node_name":"192.168.0.118:8983_solr"}
@@ -60,7 +75,7 @@ abstract class SolrTools {
 	//  ,{"state":"active","base_url":"http://192.168.0.108:8983/solr","core":"collection1","node_name":"192.168.0.108:8983_solr"}
 	//  ,{"state":"active","base_url":"http://192.168.0.191:8983/solr","core":"collection1","node_name":"192.168.0.191:8983_solr"}
 	//  ]
-	//󷵻null
+	//错误返回null
 	public static JsonArray getClusterState(String solrServers, String coreName, int connectTimeout, int readTimeout) {
 		List<String> urlArray = Arrays.asList(solrServers.split(","));
 		Collections.shuffle(urlArray);
@@ -88,24 +103,11 @@ abstract class SolrTools {
 
 				JsonObject jsonBody = new JsonObject(bodyText);
 				String data = jsonBody.getObject("znode").getString("data");
-				JsonObject jsonData = new JsonObject(data);
-
-				JsonObject shards = jsonData.getObject(coreName).getObject("shards");
-				result = new JsonArray();
-				for(String fName : shards.getFieldNames()) {
-					JsonObject jsonShared = shards.getObject(fName);
-					JsonObject replicas = jsonShared.getObject("replicas");
-
-					Map<String, Object> nodes = replicas.toMap();
-					for (Object node : nodes.values()) {
-						JsonObject jsonNode = new JsonObject((Map<String, Object>) node);
-						result.addObject(jsonNode);
-					}
-				}
+				result = parseClusterState(data, coreName);
 
 				break;
 			} catch (Exception e) {
-				ConnectException ee = new ConnectException("URL:[" + solrServers + "],Ϣ:" + e.getMessage());
+				ConnectException ee = new ConnectException("URL:[" + solrServers + "],错误消息:" + e.getMessage());
 				ee.initCause(e);
 				ee.printStackTrace();
 				result = null;
@@ -115,7 +117,48 @@ abstract class SolrTools {
 		return result;
 	}
 
+	/**
+	 * 解析ZooKeeper里clusterstate.json或者/collections/${coreName}/state.json的内容,格式和getClusterState()一样.
+	 * 没有这个集合时返回null
+	 */
+	@SuppressWarnings("unchecked")
+	static JsonArray parseClusterState(String data, String coreName) {
+		JsonObject jsonData = new JsonObject(data);
+		JsonObject jsonCollection = jsonData.getObject(coreName);
+		if (jsonCollection == null) {
+			return null;
+		}
+		JsonObject shards = jsonCollection.getObject("shards");
+		Object router = jsonCollection.getField("router"); //4.4以后是{"name":"compositeId"},以前是"compositeId"
+		if (router instanceof JsonObject) {
+			router = ((JsonObject) router).getString("name");
+		} else if (router instanceof Map) {
+			router = ((Map<String, Object>) router).get("name");
+		}
+		JsonArray result = new JsonArray();
+		for (String fName : shards.getFieldNames()) {
+			JsonObject jsonShared = shards.getObject(fName);
+			JsonObject replicas = jsonShared.getObject("replicas");
+
+			Map<String, Object> nodes = replicas.toMap();
+			for (Object node : nodes.values()) {
+				JsonObject jsonNode = new JsonObject((Map<String, Object>) node);
+				jsonNode.putString(F_SHARD, fName);
+				jsonNode.putString(F_RANGE, jsonShared.getString(F_RANGE));
+				jsonNode.putString(F_ROUTER, router == null ? null : router.toString());
+				result.addObject(jsonNode);
+			}
+		}
+		return result;
+	}
+
+	private static final Map<String, Integer> _solrVersions = new java.util.concurrent.ConcurrentHashMap<String, Integer>(); //每个Solr地址的主版本号,升级Solr要重启RegionServer
+
   private static int getSolrVersion(String solrURL, int connectTimeout, int readTimeout) {
+    Integer version = _solrVersions.get(solrURL);
+    if (version != null) {
+      return version.intValue();
+    }
     try {
       String clusterUrl;
       if (solrURL.endsWith("/")) {
@@ -128,17 +171,20 @@ abstract class SolrTools {
       JsonObject jsonBody = new JsonObject(bodyText);
       String data = jsonBody.getObject("lucene").getString("solr-spec-version");
 
-      return Integer.parseInt(data.substring(0, 1));
+      int dot = data.indexOf('.');
+      version = Integer.valueOf(dot < 0 ? data : data.substring(0, dot));
+      _solrVersions.put(solrURL, version);
+      return version.intValue();
     } catch (Exception e) {
       throw new RuntimeException(e);
     }
   }
 	
 	/**
-	 * SolrصĶ,״̬
+	 * 从Solr返回的对象中,返回状态码
 	 * 
 	 * @param solrResponse
-	 *          - Solrص״̬
+	 *          - Solr返回的状态码
 	 */
 	public static int getStatus(JsonObject solrResponse) {
 		return solrResponse.getObject("responseHeader").getInteger("status").intValue();
@@ -188,6 +234,42 @@ abstract class SolrTools {
 		return solrResponse;
 	}
 
+	/**
+	 * 提交已经编码好的请求体(body里从offset开始的length个字节),不再经过JsonObject
+	 */
+	public static JsonObject updateRaw(String urlUpdate, int connectTimeout, int readTimeout, byte[] body, int offset,
+	    int length) throws IOException {
+		JsonObject solrResponse = new JsonObject(post(urlUpdate, connectTimeout, readTimeout, body, offset, length, null,
+		    null));
+		return solrResponse;
+	}
+
+	/**
+	 * 在同一个连接上依次提交多个已经编码好的更新请求(比如先删除再更新),按顺序返回Solr的应答
+	 */
+	public static List<JsonObject> updatePipelined(String urlUpdate, int connectTimeout, int readTimeout,
+	    List<byte[]> datas) throws IOException {
+		//和post()一样只压缩大的请求体,每个请求分别决定是否压缩
+		List<byte[]> bodies = new java.util.ArrayList<byte[]>(datas.size());
+		List<String> contentEncodings = new java.util.ArrayList<String>(datas.size());
+		for (byte[] data : datas) {
+			if (_gzipRequests && data.length >= GZIP_MIN_BYTES) {
+				bodies.add(gzip(data, 0, data.length));
+				contentEncodings.add("gzip");
+			} else {
+				bodies.add(data);
+				contentEncodings.add(null);
+			}
+		}
+
+		List<JsonObject> solrResponses = new java.util.ArrayList<JsonObject>(datas.size());
+		for (String response : _transport.doPostPipelined(urlUpdate, connectTimeout, readTimeout, bodies, contentEncodings,
+		    null, null)) {
+			solrResponses.add(new JsonObject(response));
+		}
+		return solrResponses;
+	}
+
 	public static JsonObject solrCommit(String urlUpdate, int connectTimeout, int readTimeout) throws IOException {
 		JsonObject doc = new JsonObject("{\"commit\":{\"softCommit\": true}}");
 		JsonObject solrResponse = new JsonObject(doPostProcess(urlUpdate, connectTimeout, readTimeout, doc.encode(), null,
@@ -196,153 +278,78 @@ abstract class SolrTools {
 	}
 
 	/**
-	 * HTTPGET,ҪBASIC֤,userԼpassΪnullֵ
+	 * 处理HTTP的GET请求,如果不需要BASIC验证,把user以及pass设置为null值
 	 * 
 	 * @param urlstr
-	 *          URL
+	 *          请求的URL
 	 * @param user
-	 *          û
+	 *          用户名
 	 * @param pass
-	 *          
-	 * @return ķϢ
+	 *          密码
+	 * @return 服务器的返回信息
 	 * @throws IOException
 	 */
 	private static String doGetProcess(String urlstr, int connectTimeout, int readTimeout, String user, String pass)
 	    throws IOException {
-		URL url = new URL(urlstr);
-
-		HttpURLConnection conn = null;
-		BufferedReader reader = null;
-		try {
-			conn = (HttpURLConnection) url.openConnection();
-			conn.setConnectTimeout(connectTimeout);
-			conn.setReadTimeout(readTimeout);
-			conn.setUseCaches(false);
-			conn.setDoOutput(false);
-			conn.setDoInput(true);
-			conn.setRequestProperty("Accept", "*/*");
-			if (user != null && pass != null) {
-				conn.setRequestProperty("Authorization",
-				    "Basic " + new String(Base64.encodeBytes((user + ":" + pass).getBytes(UTF_8)))); //ҪBASIC֤
-			}
-
-			conn.connect();
-
-			if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-				reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), UTF_8));
-			} else {
-				reader = new BufferedReader(new InputStreamReader(conn.getErrorStream(), UTF_8));
-			}
-			String line;
-			StringBuilder result = new StringBuilder();
-
-			int i = 0;
-			while ((line = reader.readLine()) != null) {
-				i++;
-				if (i != 1) {
-					result.append("\n");
-				}
-				result.append(line);
-			}
-			return result.toString();
-		} finally {
-			if (reader != null) {
-				try {
-					reader.close();
-				} catch (IOException ex) {
-				}
-			}
-
-			if (conn != null) {
-				try {
-					conn.disconnect();
-				} catch (Exception ex) {
-				}
-			}
-		}
+		return _transport.doGet(urlstr, connectTimeout, readTimeout, user, pass);
 	}
 
 	/**
-	 * HTTPPOST,ҪBASIC֤,userԼpassΪnullֵ
+	 * 处理HTTP的POST请求,如果不需要BASIC验证,把user以及pass设置为null值
 	 * 
 	 * @param urlstr
-	 *          URL
+	 *          请求的URL
 	 * @param data
-	 *          еϢ
+	 *          请求中的信息内容
 	 * @param user
-	 *          û
+	 *          用户名
 	 * @param pass
-	 *          
-	 * @return ķϢ
+	 *          密码
+	 * @return 服务器的返回信息
 	 * @throws IOException
 	 */
 	private static String doPostProcess(String urlstr, int connectTimeout, int readTimeout, String data, String user,
 	    String pass) throws IOException {
-		URL url = new URL(urlstr);
-
-		HttpURLConnection conn = null;
-		BufferedReader reader = null;
-		OutputStreamWriter writer = null;
-		try {
-			conn = (HttpURLConnection) url.openConnection();
-			conn.setConnectTimeout(connectTimeout);
-			conn.setReadTimeout(readTimeout);
-			conn.setUseCaches(false);
-			conn.setDoOutput(true);
-			conn.setDoInput(true);
-			conn.setRequestProperty("Accept", "*/*");
-			conn.setRequestProperty("Content-Type", "application/json;charset=" + UTF_8);
-			if (user != null && pass != null) {
-				conn.setRequestProperty("Authorization",
-				    "Basic " + new String(Base64.encodeBytes((user + ":" + pass).getBytes(UTF_8)))); //ҪBASIC֤
-			}
-
-			conn.connect();
+		byte[] bytes = data.getBytes(UTF_8);
+		return post(urlstr, connectTimeout, readTimeout, bytes, 0, bytes.length, user, pass);
+	}
 
-			writer = new OutputStreamWriter(conn.getOutputStream(), UTF_8);
-			writer.write(data);
-			writer.flush();
+	/**
+	 * 发送POST请求,打开了gzip并且请求体足够大时先压缩
+	 */
+	private static String post(String urlstr, int connectTimeout, int readTimeout, byte[] data, int offset, int length,
+	    String user, String pass) throws IOException {
+		if (_gzipRequests && length >= GZIP_MIN_BYTES) {
+			byte[] gzipData = gzip(data, offset, length);
+			return _transport.doPost(urlstr, connectTimeout, readTimeout, gzipData, 0, gzipData.length, "gzip", user, pass);
+		}
+		return _transport.doPost(urlstr, connectTimeout, readTimeout, data, offset, length, null, user, pass);
+	}
 
-			if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-				reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), UTF_8));
-			} else {
-				reader = new BufferedReader(new InputStreamReader(conn.getErrorStream(), UTF_8));
-			}
-			String line;
-			StringBuilder result = new StringBuilder();
-
-			int i = 0;
-			while ((line = reader.readLine()) != null) {
-				i++;
-				if (i != 1) {
-					result.append("\n");
-				}
-				result.append(line);
+	private static byte[] gzip(byte[] data, int offset, int length) throws IOException {
+		java.io.ByteArrayOutputStream bos = new java.io.ByteArrayOutputStream(length / 4 + 64);
+		java.util.zip.GZIPOutputStream gos = new java.util.zip.GZIPOutputStream(bos, 8192) {
+			{
+				def.setLevel(java.util.zip.Deflater.BEST_SPEED);
 			}
-			return result.toString();
+		};
+		try {
+			gos.write(data, offset, length);
 		} finally {
-			if (reader != null) {
-				try {
-					reader.close();
-				} catch (IOException ex) {
-				}
-			}
-
-			if (writer != null) {
-				try {
-					writer.close();
-				} catch (IOException ex) {
-				}
-			}
-
-			if (conn != null) {
-				try {
-					conn.disconnect();
-				} catch (Exception ex) {
-				}
-			}
+			gos.close();
 		}
+		return bos.toByteArray();
+	}
 
+	static boolean isGzipRequests() {
+		return _gzipRequests;
+	}
+
+	/**
+	 * 是否用gzip压缩POST的请求体,Solr前面需要有能解压请求体的Servlet Filter(比如Jetty的GzipHandler)
+	 */
+	static void setGzipRequests(boolean gzipRequests) {
+		_gzipRequests = gzipRequests;
 	}
 
 	public static class WrapperEntry<K, V> {
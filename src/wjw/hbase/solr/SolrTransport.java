@@ -0,0 +1,41 @@
+package wjw.hbase.solr;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * SolrTools发送HTTP请求的底层实现,如果不需要BASIC验证,把user以及pass设置为null值
+ */
+public interface SolrTransport {
+	/**
+	 * 发送HTTP的GET请求
+	 *
+	 * @return 服务器的返回信息
+	 */
+	String doGet(String urlstr, int connectTimeout, int readTimeout, String user, String pass) throws IOException;
+
+	/**
+	 * 发送HTTP的POST请求,请求体是data里从offset开始的length个字节(UTF-8编码的JSON)
+	 *
+	 * @param contentEncoding
+	 *          - 请求体的Content-Encoding(比如gzip),为null时不压缩
+	 * @return 服务器的返回信息
+	 */
+	String doPost(String urlstr, int connectTimeout, int readTimeout, byte[] data, int offset, int length,
+	    String contentEncoding, String user, String pass) throws IOException;
+
+	/**
+	 * 向同一个URL依次发送多个POST请求,能复用连接的实现应该在同一个连接上流水线(pipelining)发送
+	 *
+	 * @param contentEncodings
+	 *          - 每个请求体的Content-Encoding,和datas一一对应,为null的请求体没有压缩
+	 * @return 按请求顺序返回服务器的返回信息
+	 */
+	List<String> doPostPipelined(String urlstr, int connectTimeout, int readTimeout, List<byte[]> datas,
+	    List<String> contentEncodings, String user, String pass) throws IOException;
+
+	/**
+	 * 关闭所有连接
+	 */
+	void close();
+}
@@ -0,0 +1,170 @@
+package wjw.hbase.solr;
+
+import org.apache.log4j.Logger;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.wjw.efjson.JsonArray;
+import org.wjw.efjson.JsonObject;
+
+/**
+ * 直接从Solr的ZooKeeper读取集群状态,并且watch它的变化,不再通过Solr的admin/zookeeper接口轮询.
+ * <p>
+ * 集合的状态在/collections/${coreName}/state.json(Solr 5以后),没有时在/clusterstate.json;
+ * 节点是不是活着看/live_nodes,不在里面的副本当成down.任何一个节点有变化就重新读取,
+ * 然后交给SolrRegionObserver.applyClusterState().
+ */
+class SolrZkClusterState implements Watcher {
+	private static Logger log = Logger.getLogger(SolrZkClusterState.class);
+
+	static final String LIVE_NODES = "/live_nodes";
+	static final String CLUSTER_STATE = "/clusterstate.json";
+
+	private final String _zkHost;
+	private final String _coreName;
+	private final int _sessionTimeout;
+	private final String _statePath;
+
+	private ZooKeeper _zk;
+	private JsonArray _state; //最近一次读取的状态
+	private boolean _closed = false;
+
+	/**
+	 * @param zkHost
+	 *          - Solr的ZooKeeper地址,可以带chroot,比如zk1:2181,zk2:2181/solr
+	 */
+	SolrZkClusterState(String zkHost, String coreName, int sessionTimeout) {
+		_zkHost = zkHost;
+		_coreName = coreName;
+		_sessionTimeout = sessionTimeout;
+		_statePath = "/collections/" + coreName + "/state.json";
+	}
+
+	synchronized void start() throws java.io.IOException {
+		_zk = new ZooKeeper(_zkHost, _sessionTimeout, this);
+	}
+
+	/**
+	 * 是否连接着ZooKeeper并且已经读到了状态,这时不需要再轮询
+	 */
+	synchronized boolean isWatching() {
+		return _zk != null && _state != null && _zk.getState().isConnected();
+	}
+
+	@Override
+	public void process(WatchedEvent event) {
+		if (event.getType() == Event.EventType.None) {
+			if (event.getState() == Event.KeeperState.Expired) { //会话过期后watch都没有了,重新连接
+				log.warn("Solr ZooKeeper session expired, reconnect:" + _zkHost);
+				reconnect();
+				return;
+			}
+			if (event.getState() != Event.KeeperState.SyncConnected) {
+				return;
+			}
+		}
+		refresh();
+	}
+
+	private void reconnect() {
+		synchronized (this) {
+			if (_closed) {
+				return;
+			}
+			closeZk();
+			try {
+				_zk = new ZooKeeper(_zkHost, _sessionTimeout, this);
+			} catch (java.io.IOException e) {
+				log.error("can not connect Solr ZooKeeper:" + _zkHost, e);
+			}
+		}
+	}
+
+	/**
+	 * 重新读取集群状态,同时重新设置watch
+	 */
+	private void refresh() {
+		JsonArray state;
+		synchronized (this) {
+			if (_closed || _zk == null) {
+				return;
+			}
+			try {
+				state = read();
+			} catch (KeeperException e) { //连接恢复后会再次收到SyncConnected
+				log.warn("can not read Solr cluster state from ZooKeeper:" + e);
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (RuntimeException e) { //JSON格式不对
+				log.error("bad Solr cluster state in ZooKeeper:" + _zkHost, e);
+				return;
+			}
+			if (state == null) {
+				log.warn("collection not found in Solr ZooKeeper:" + _coreName);
+				return;
+			}
+			_state = state;
+		}
+		SolrRegionObserver.applyClusterState(state); //不能拿着自己的锁
+	}
+
+	private JsonArray read() throws KeeperException, InterruptedException {
+		java.util.Set<String> liveNodes = new java.util.HashSet<String>(_zk.getChildren(LIVE_NODES, this));
+
+		byte[] data;
+		if (_zk.exists(_statePath, this) != null) {
+			try {
+				data = _zk.getData(_statePath, this, new Stat());
+			} catch (KeeperException.NoNodeException e) { //刚被删除,exists的watch会通知
+				data = _zk.getData(CLUSTER_STATE, this, new Stat());
+			}
+		} else {
+			data = _zk.getData(CLUSTER_STATE, this, new Stat());
+		}
+		if (data == null || data.length == 0) {
+			return null;
+		}
+
+		JsonArray state;
+		try {
+			state = SolrTools.parseClusterState(new String(data, SolrTools.UTF_8), _coreName);
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		if (state == null) {
+			return null;
+		}
+		for (int i = 0; i < state.size(); i++) {
+			JsonObject jNode = state.<JsonObject> get(i);
+			if (!liveNodes.contains(jNode.getString("node_name"))) {
+				jNode.putString("state", "down");
+			}
+		}
+		return state;
+	}
+
+	private void closeZk() {
+		if (_zk != null) {
+			try {
+				_zk.close();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			_zk = null;
+		}
+	}
+
+	synchronized void close() {
+		_closed = true;
+		closeZk();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return _zkHost + (_zk == null ? "" : "{" + _zk.getState() + "}");
+	}
+}
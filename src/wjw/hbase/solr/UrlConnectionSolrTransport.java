@@ -0,0 +1,152 @@
+package wjw.hbase.solr;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基于JDK的HttpURLConnection的实现,每次请求都会断开连接
+ */
+class UrlConnectionSolrTransport implements SolrTransport {
+
+	@Override
+	public String doGet(String urlstr, int connectTimeout, int readTimeout, String user, String pass) throws IOException {
+		URL url = new URL(urlstr);
+
+		HttpURLConnection conn = null;
+		BufferedReader reader = null;
+		try {
+			conn = (HttpURLConnection) url.openConnection();
+			conn.setConnectTimeout(connectTimeout);
+			conn.setReadTimeout(readTimeout);
+			conn.setUseCaches(false);
+			conn.setDoOutput(false);
+			conn.setDoInput(true);
+			conn.setRequestProperty("Accept", "*/*");
+			if (user != null && pass != null) {
+				conn.setRequestProperty("Authorization",
+				    "Basic " + new String(Base64.encodeBytes((user + ":" + pass).getBytes(SolrTools.UTF_8)))); //需要BASIC验证
+			}
+
+			conn.connect();
+
+			if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+				reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), SolrTools.UTF_8));
+			} else {
+				reader = new BufferedReader(new InputStreamReader(conn.getErrorStream(), SolrTools.UTF_8));
+			}
+			return readBody(reader);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException ex) {
+				}
+			}
+
+			if (conn != null) {
+				try {
+					conn.disconnect();
+				} catch (Exception ex) {
+				}
+			}
+		}
+	}
+
+	@Override
+	public String doPost(String urlstr, int connectTimeout, int readTimeout, byte[] data, int offset, int length,
+	    String contentEncoding, String user, String pass) throws IOException {
+		URL url = new URL(urlstr);
+
+		HttpURLConnection conn = null;
+		BufferedReader reader = null;
+		OutputStream writer = null;
+		try {
+			conn = (HttpURLConnection) url.openConnection();
+			conn.setConnectTimeout(connectTimeout);
+			conn.setReadTimeout(readTimeout);
+			conn.setUseCaches(false);
+			conn.setDoOutput(true);
+			conn.setDoInput(true);
+			conn.setRequestProperty("Accept", "*/*");
+			conn.setRequestProperty("Content-Type", "application/json;charset=" + SolrTools.UTF_8);
+			if (contentEncoding != null) {
+				conn.setRequestProperty("Content-Encoding", contentEncoding);
+			}
+			if (user != null && pass != null) {
+				conn.setRequestProperty("Authorization",
+				    "Basic " + new String(Base64.encodeBytes((user + ":" + pass).getBytes(SolrTools.UTF_8)))); //需要BASIC验证
+			}
+
+			conn.connect();
+
+			writer = conn.getOutputStream();
+			writer.write(data, offset, length);
+			writer.flush();
+
+			if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
+				reader = new BufferedReader(new InputStreamReader(conn.getInputStream(), SolrTools.UTF_8));
+			} else {
+				reader = new BufferedReader(new InputStreamReader(conn.getErrorStream(), SolrTools.UTF_8));
+			}
+			return readBody(reader);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException ex) {
+				}
+			}
+
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (IOException ex) {
+				}
+			}
+
+			if (conn != null) {
+				try {
+					conn.disconnect();
+				} catch (Exception ex) {
+				}
+			}
+		}
+	}
+
+	@Override
+	public List<String> doPostPipelined(String urlstr, int connectTimeout, int readTimeout, List<byte[]> datas,
+	    List<String> contentEncodings, String user, String pass) throws IOException {
+		List<String> results = new ArrayList<String>(datas.size());
+		for (int i = 0; i < datas.size(); i++) { //HttpURLConnection不支持流水线,只能一个一个的发
+			byte[] data = datas.get(i);
+			results.add(doPost(urlstr, connectTimeout, readTimeout, data, 0, data.length, contentEncodings.get(i), user, pass));
+		}
+		return results;
+	}
+
+	@Override
+	public void close() {
+		//
+	}
+
+	private static String readBody(BufferedReader reader) throws IOException {
+		String line;
+		StringBuilder result = new StringBuilder();
+
+		int i = 0;
+		while ((line = reader.readLine()) != null) {
+			i++;
+			if (i != 1) {
+				result.append("\n");
+			}
+			result.append(line);
+		}
+		return result.toString();
+	}
+}
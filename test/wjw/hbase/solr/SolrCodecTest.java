@@ -0,0 +1,58 @@
+package wjw.hbase.solr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SolrCodecTest {
+	@Test
+	public void deflateRoundTrip() throws IOException {
+		SolrCodec codec = SolrCodec.getCodec("deflate");
+		Random random = new Random(20141119L);
+		for (int size : new int[] { 0, 1, SolrCodec.MIN_BYTES - 1, SolrCodec.MIN_BYTES, 1000, 100000 }) {
+			byte[] text = new byte[size];
+			for (int i = 0; i < size; i++) {
+				text[i] = (byte) ('a' + random.nextInt(4)); //容易压缩
+			}
+			byte[] encoded = codec.encode(text);
+			if (size >= SolrCodec.MIN_BYTES) {
+				assertEquals(SolrCodec.MAGIC_DEFLATE, encoded[0]);
+				assertTrue(encoded.length < size);
+			} else {
+				assertSame(text, encoded);
+			}
+			assertArrayEquals(text, codec.decode(encoded));
+			assertArrayEquals(text, SolrCodec.getCodec("none").decode(encoded)); //不管配置是什么都能解压
+		}
+	}
+
+	@Test
+	public void incompressibleDataIsKept() throws IOException {
+		SolrCodec codec = SolrCodec.getCodec("deflate");
+		byte[] noise = new byte[1000];
+		new Random(20141119L).nextBytes(noise);
+		noise[0] = '{';
+		byte[] encoded = codec.encode(noise);
+		assertArrayEquals(noise, encoded);
+		assertArrayEquals(noise, codec.decode(encoded));
+	}
+
+	@Test
+	public void noneCodec() throws IOException {
+		SolrCodec codec = SolrCodec.getCodec("none");
+		byte[] data = "{\"id\":\"t#1\"}".getBytes(SolrTools.UTF_8);
+		assertSame(data, codec.encode(data));
+		assertSame(data, codec.decode(data));
+	}
+
+	@Test(expected = IOException.class)
+	public void unknownCodec() throws IOException {
+		SolrCodec.getCodec("lz4");
+	}
+}
@@ -0,0 +1,54 @@
+package wjw.hbase.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.wjw.efjson.JsonArray;
+import org.wjw.efjson.JsonObject;
+
+/**
+ * 写出的JSON要能被JSON解析器原样读回来.
+ */
+public class SolrJsonWriterTest {
+	@Test
+	public void escapedStringsRoundTrip() throws IOException {
+		String[] values = { "", "plain", "quote\"back\\slash/", "\b\f\n\r\t", "\u0000\u0001\u001f\u007f", "中文", "\u2028\u2029",
+		    "emoji\ud83d\ude00", "mixed \"中\"\n文" };
+		for (String value : values) {
+			SolrJsonWriter writer = new SolrJsonWriter(4);
+			writer.startObject().name("v").value(value).endObject();
+			JsonObject json = new JsonObject(new String(writer.toByteArray(), SolrTools.UTF_8));
+			assertEquals(value, json.getString("v"));
+		}
+	}
+
+	@Test
+	public void atomicUpdates() throws IOException {
+		SolrJsonWriter writer = new SolrJsonWriter();
+		writer.startArray();
+		writer.startObject().name("id").value("t#1").set("s", "x").set("l", Long.MIN_VALUE).set("d", 1.5d).set("f", 2.5f)
+		    .set("b", true).set("n", (String) null).endObject();
+		writer.endArray();
+		JsonArray array = new JsonArray(new String(writer.getBuffer(), 0, writer.size(), SolrTools.UTF_8));
+		JsonObject doc = array.<JsonObject> get(0);
+		assertEquals("t#1", doc.getString("id"));
+		assertEquals("x", doc.getObject("s").getString("set"));
+		assertEquals(Long.valueOf(Long.MIN_VALUE), doc.getObject("l").getLong("set"));
+		assertEquals(1.5d, doc.getObject("d").getNumber("set").doubleValue(), 0d);
+		assertEquals(2.5d, doc.getObject("f").getNumber("set").doubleValue(), 0d);
+		assertEquals(Boolean.TRUE, doc.getObject("b").getBoolean("set"));
+		assertNull(doc.getObject("n").getField("set"));
+	}
+
+	@Test
+	public void resetReusesBuffer() {
+		SolrJsonWriter writer = new SolrJsonWriter();
+		writer.startObject().name("a").value(1L).endObject();
+		writer.reset();
+		writer.startArray().value(false).endArray();
+		assertEquals("[false]", new String(writer.toByteArray()));
+	}
+}
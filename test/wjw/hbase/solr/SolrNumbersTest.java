@@ -0,0 +1,172 @@
+package wjw.hbase.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * SolrNumbers的解析结果必须和JDK的parseXxx完全一样,包括出错的情况.
+ */
+public class SolrNumbersTest {
+	private static final String[] LONGS = { "0", "-0", "+0", "1", "-1", "+7", "007", "2147483647", "-2147483648",
+	    "2147483648", "-2147483649", "9223372036854775807", "-9223372036854775808", "9223372036854775808",
+	    "-9223372036854775809", "99999999999999999999", "", "-", "+", "1a", "a1", " 1", "1 ", "1.0", "--1", "0x10" };
+
+	private static final String[] DOUBLES = { "0", "-0", "0.0", "-0.0", "1", "-1", "+1.5", "3.14", "0.1", "0.7", "1.",
+	    ".5", "-.5", "123456789012345", "1234567890123456", "12345678901234567890", "0.000001", "0.1234567890123",
+	    "9007199254740993", "1e10", "1E-5", "-2.5e+3", "NaN", "-Infinity", "Infinity", "0x1p3", "1d", "1f", "", "-", ".",
+	    "1.2.3", "abc", " 1", "1 ", "1,5" };
+
+	@Test
+	public void parseLongMatchesJdk() {
+		for (String s : LONGS) {
+			checkLong(s);
+		}
+		Random random = new Random(20141119L);
+		for (int i = 0; i < 100000; i++) {
+			long v = random.nextLong() >> random.nextInt(64);
+			checkLong(Long.toString(v));
+			checkInt(Long.toString(v));
+		}
+	}
+
+	@Test
+	public void parseIntMatchesJdk() {
+		for (String s : LONGS) {
+			checkInt(s);
+		}
+	}
+
+	@Test
+	public void parseDoubleMatchesJdk() {
+		for (String s : DOUBLES) {
+			checkDouble(s);
+		}
+		Random random = new Random(20141119L);
+		for (int i = 0; i < 100000; i++) {
+			long mantissa = random.nextLong() % 1000000000000000L;
+			int scale = random.nextInt(20);
+			String s = new java.math.BigDecimal(java.math.BigInteger.valueOf(mantissa), scale).toPlainString();
+			checkDouble(s);
+			checkDouble(Double.toString(random.nextDouble() * 1000));
+		}
+	}
+
+	@Test
+	public void parseFloatMatchesJdk() {
+		for (String s : DOUBLES) {
+			checkFloat(s);
+		}
+		Random random = new Random(20141119L);
+		for (int i = 0; i < 100000; i++) {
+			int mantissa = random.nextInt(20000000) - 10000000;
+			int scale = random.nextInt(12);
+			String s = new java.math.BigDecimal(java.math.BigInteger.valueOf(mantissa), scale).toPlainString();
+			checkFloat(s);
+		}
+	}
+
+	@Test
+	public void parseBooleanMatchesJdk() {
+		for (String s : new String[] { "true", "TRUE", "True", "tRuE", "false", "", "t", "1", "yes", "truee", " true" }) {
+			byte[] b = bytes(s);
+			assertEquals(s, Boolean.parseBoolean(s), SolrNumbers.parseBoolean(b, 0, b.length));
+		}
+	}
+
+	@Test
+	public void parseWithOffset() {
+		byte[] b = bytes("xx-12345.25yy");
+		assertEquals(-12345L, SolrNumbers.parseLong(b, 2, 6));
+		assertEquals(Double.doubleToLongBits(-12345.25), Double.doubleToLongBits(SolrNumbers.parseDouble(b, 2, 9)));
+	}
+
+	private static void checkLong(String s) {
+		byte[] b = bytes(s);
+		Long expected;
+		try {
+			expected = Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			expected = null;
+		}
+		try {
+			long actual = SolrNumbers.parseLong(b, 0, b.length);
+			assertEquals("parseLong(" + s + ")", expected, Long.valueOf(actual));
+		} catch (NumberFormatException e) {
+			if (expected != null) {
+				fail("parseLong(" + s + ") should be " + expected);
+			}
+		}
+	}
+
+	private static void checkInt(String s) {
+		byte[] b = bytes(s);
+		Integer expected;
+		try {
+			expected = Integer.parseInt(s);
+		} catch (NumberFormatException e) {
+			expected = null;
+		}
+		try {
+			int actual = SolrNumbers.parseInt(b, 0, b.length);
+			assertEquals("parseInt(" + s + ")", expected, Integer.valueOf(actual));
+		} catch (NumberFormatException e) {
+			if (expected != null) {
+				fail("parseInt(" + s + ") should be " + expected);
+			}
+		}
+	}
+
+	private static void checkDouble(String s) {
+		byte[] b = bytes(s);
+		Double expected;
+		try {
+			expected = Double.parseDouble(s);
+		} catch (NumberFormatException e) {
+			expected = null;
+		}
+		try {
+			double actual = SolrNumbers.parseDouble(b, 0, b.length);
+			if (expected == null) {
+				fail("parseDouble(" + s + ") should fail, but got " + actual);
+			}
+			assertEquals("parseDouble(" + s + ")", Double.doubleToLongBits(expected), Double.doubleToLongBits(actual)); //-0.0和0.0也要区分
+		} catch (NumberFormatException e) {
+			if (expected != null) {
+				fail("parseDouble(" + s + ") should be " + expected);
+			}
+		}
+	}
+
+	private static void checkFloat(String s) {
+		byte[] b = bytes(s);
+		Float expected;
+		try {
+			expected = Float.parseFloat(s);
+		} catch (NumberFormatException e) {
+			expected = null;
+		}
+		try {
+			float actual = SolrNumbers.parseFloat(b, 0, b.length);
+			if (expected == null) {
+				fail("parseFloat(" + s + ") should fail, but got " + actual);
+			}
+			assertEquals("parseFloat(" + s + ")", Float.floatToIntBits(expected), Float.floatToIntBits(actual));
+		} catch (NumberFormatException e) {
+			if (expected != null) {
+				fail("parseFloat(" + s + ") should be " + expected);
+			}
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes("ISO-8859-1");
+		} catch (java.io.UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package wjw.hbase.solr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.leansoft.bigqueue.BigArrayImpl;
+import com.leansoft.bigqueue.BigQueueImpl;
+import com.leansoft.bigqueue.IBigQueue;
+
+/**
+ * SolrQueuePartition和BigQueueImpl的磁盘格式相同,升级前后的队列数据可以互相打开.
+ */
+public class SolrQueuePartitionTest {
+	private static final String NAME = "hbase_solr_update";
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void reopenBigQueueImpl() throws IOException {
+		String dir = folder.getRoot().getPath();
+		IBigQueue queue = new BigQueueImpl(dir, NAME, BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		for (int i = 0; i < 100; i++) {
+			queue.enqueue(record(i));
+		}
+		for (int i = 0; i < 30; i++) {
+			assertArrayEquals(record(i), queue.dequeue());
+		}
+		queue.close();
+
+		SolrQueuePartition partition = new SolrQueuePartition(0, dir, NAME, SolrCodec.getCodec("none"));
+		assertEquals(70, partition.size());
+		long bytes = 0;
+		for (int i = 30; i < 100; i++) {
+			bytes = bytes + record(i).length;
+		}
+		assertEquals(bytes, partition.sizeBytes()); //没有checkpoint,积压少的时候逐条计算
+
+		for (int i = 30; i < 50; i++) {
+			assertArrayEquals(record(i), partition.next());
+		}
+		SolrQueuePartition.Round round = partition.addRound(1);
+		assertEquals(70, partition.size()); //还没有被确认
+		partition.ack(round, true);
+		assertEquals(50, partition.size());
+		partition.close();
+
+		queue = new BigQueueImpl(dir, NAME, BigArrayImpl.MINIMUM_DATA_PAGE_SIZE);
+		assertEquals(50, queue.size());
+		assertArrayEquals(record(50), queue.peek());
+		queue.close();
+	}
+
+	@Test
+	public void failedRoundIsReadAgain() throws IOException {
+		String dir = folder.getRoot().getPath();
+		SolrQueuePartition partition = new SolrQueuePartition(0, dir, NAME, SolrCodec.getCodec("deflate"));
+		for (int i = 0; i < 10; i++) {
+			partition.enqueue(record(i));
+		}
+		for (int i = 0; i < 10; i++) {
+			assertArrayEquals(record(i), partition.next());
+		}
+		assertNull(partition.next());
+		SolrQueuePartition.Round round = partition.addRound(2);
+		partition.ack(round, true);
+		partition.ack(round, false);
+		assertEquals(10, partition.size());
+		assertEquals(true, partition.rewind());
+		assertArrayEquals(record(0), partition.next());
+		long bytes = partition.sizeBytes();
+		partition.close();
+
+		//重新打开时从checkpoint读出积压的字节数
+		partition = new SolrQueuePartition(0, dir, NAME, SolrCodec.getCodec("none"));
+		assertEquals(10, partition.size());
+		assertEquals(bytes, partition.sizeBytes());
+		assertArrayEquals(record(0), partition.next()); //不管配置是什么都能解压
+		partition.close();
+	}
+
+	private static byte[] record(int i) {
+		StringBuilder sb = new StringBuilder("{\"id\":\"t#").append(i).append("\"");
+		for (int j = 0; j < i % 7; j++) {
+			sb.append(",\"f").append(j).append("_s\":{\"set\":\"value value value value\"}");
+		}
+		return sb.append('}').toString().getBytes();
+	}
+}
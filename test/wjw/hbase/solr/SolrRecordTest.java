@@ -0,0 +1,150 @@
+package wjw.hbase.solr;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.wjw.efjson.JsonObject;
+
+/**
+ * 二进制记录经过SolrCodec压缩,解压,解析后生成的Solr JSON要和写入的内容一致.
+ */
+public class SolrRecordTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File _dir;
+	private SolrDictionary _dict;
+
+	@Before
+	public void setUp() throws IOException {
+		_dir = folder.getRoot();
+		_dict = SolrDictionary.open(_dir.getPath(), "q");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		_dict.close();
+	}
+
+	@Test
+	public void putRoundTrip() throws IOException {
+		SolrCodec codec = SolrCodec.getCodec("deflate");
+		byte[] inline = codec.encode(put().toByteArray()); //名字还不在字典里,直接写在记录里
+		_dict.flush();
+		byte[] withIds = codec.encode(put().toByteArray());
+		assertTrue(withIds.length < inline.length);
+
+		for (byte[] encoded : Arrays.asList(inline, withIds)) {
+			byte[] data = codec.decode(encoded);
+			assertEquals(SolrRecord.VERSION_2, data[0]);
+			SolrRecord record = SolrRecord.parse(data, _dict);
+			assertEquals("table1#row-1", record.id);
+			assertFalse(record.delete);
+			checkPut(record.toJsonObject());
+		}
+
+		//重新打开字典,用编号写的记录还能解析
+		_dict.close();
+		_dict = SolrDictionary.open(_dir.getPath(), "q");
+		checkPut(SolrRecord.parse(withIds, _dict).toJsonObject());
+	}
+
+	@Test
+	public void version1Record() throws IOException {
+		_dict.id("table1");
+		_dict.id("name_s");
+		_dict.flush();
+		int tableId = _dict.id("table1");
+		int fieldId = _dict.id("name_s");
+		//旧版本的格式: 表名引用是编号,字段名引用是编号+1
+		byte[] data = { SolrRecord.VERSION, SolrRecord.OP_PUT, (byte) tableId, 5, 'r', 'o', 'w', '-', '1', 0,
+		    (byte) (fieldId + 1), SolrRecord.T_STRING, 1, 'x', 0 };
+		SolrRecord record = SolrRecord.parse(data, _dict);
+		assertEquals("table1#row-1", record.id);
+		JsonObject json = record.toJsonObject();
+		assertEquals("x", json.getObject("name_s").getString("set"));
+		assertEquals("table1", json.getObject(SolrRegionObserver.F_TABLENAME).getString("set"));
+	}
+
+	@Test
+	public void deleteRowRoundTrip() throws IOException {
+		SolrRecordBuilder builder = new SolrRecordBuilder();
+		builder.reset(_dict, SolrRecord.OP_DELETE_ROW, "table1", "row-1".getBytes(SolrTools.UTF_8), 0L);
+		SolrRecord record = SolrRecord.parse(builder.toByteArray(), _dict);
+		assertEquals("table1#row-1", record.id);
+		assertTrue(record.delete);
+
+		JsonObject json = record.toJsonObject();
+		assertEquals("table1#row-1", json.getObject(SolrCoalescer.OP_DELETE).getString(SolrRegionObserver.F_ID));
+		assertEquals(json.encode(), new JsonObject(new String(SolrRecord.newDelete(record.id).data, SolrTools.UTF_8)).encode());
+	}
+
+	@Test
+	public void jsonRecord() throws IOException {
+		byte[] data = "{\"id\":\"t#\\\"1\\\"\",\"a\":{\"set\":1}}".getBytes(SolrTools.UTF_8);
+		SolrRecord record = SolrRecord.parse(data, _dict);
+		assertEquals("t#\"1\"", record.id);
+		assertFalse(record.delete);
+
+		SolrRecord delete = SolrRecord.parse(SolrRecord.newDelete("t#2").data, _dict);
+		assertEquals("t#2", delete.id);
+		assertTrue(delete.delete);
+
+		//旧版本写的JSON,id不在最前面
+		SolrRecord old = SolrRecord.parse("{\"a\":{\"set\":1},\"id\":\"t#3\"}".getBytes(SolrTools.UTF_8), _dict);
+		assertEquals("t#3", old.id);
+	}
+
+	@Test
+	public void batchRoundTrip() throws IOException {
+		List<byte[]> records = Arrays.asList(put().toByteArray(), SolrRecord.newDelete("t#2").data, new byte[0]);
+		byte[] batch = SolrRecord.packBatch(records);
+		assertTrue(SolrRecord.isBatch(batch));
+		List<byte[]> unpacked = SolrRecord.unpackBatch(batch);
+		assertEquals(records.size(), unpacked.size());
+		for (int i = 0; i < records.size(); i++) {
+			assertArrayEquals(records.get(i), unpacked.get(i));
+		}
+	}
+
+	private SolrRecordBuilder put() throws IOException {
+		SolrRecordBuilder builder = new SolrRecordBuilder();
+		builder.reset(_dict, SolrRecord.OP_PUT, "table1", "row-1".getBytes(SolrTools.UTF_8), 1416355200000L);
+		builder.addString("name_s", "中文\"名字\"");
+		builder.addInt("age_i", -42);
+		builder.addLong("big_l", Long.MIN_VALUE);
+		builder.addFloat("f_f", 1.25f);
+		builder.addDouble("d_d", -0.5d);
+		builder.addBoolean("b_b", true);
+		builder.addNull("gone_s");
+		return builder;
+	}
+
+	private static void checkPut(JsonObject json) {
+		assertEquals("table1#row-1", json.getString(SolrRegionObserver.F_ID));
+		assertEquals("中文\"名字\"", json.getObject("name_s").getString("set"));
+		assertEquals(-42, json.getObject("age_i").getNumber("set").intValue());
+		assertEquals(Long.MIN_VALUE, json.getObject("big_l").getNumber("set").longValue());
+		assertEquals(1.25d, json.getObject("f_f").getNumber("set").doubleValue(), 0d);
+		assertEquals(-0.5d, json.getObject("d_d").getNumber("set").doubleValue(), 0d);
+		assertEquals(Boolean.TRUE, json.getObject("b_b").getBoolean("set"));
+		assertNull(json.getObject("gone_s").getField("set"));
+		assertEquals("table1", json.getObject(SolrRegionObserver.F_TABLENAME).getString("set"));
+		assertEquals("row-1", json.getObject(SolrRegionObserver.F_ROWKEY).getString("set"));
+		assertNotNull(json.getObject(SolrRegionObserver.F_UPDATETIME).getString("set"));
+	}
+}
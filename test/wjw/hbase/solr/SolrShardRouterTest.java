@@ -0,0 +1,113 @@
+package wjw.hbase.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+import org.wjw.efjson.JsonArray;
+import org.wjw.efjson.JsonObject;
+
+/**
+ * hash要和Solr的CompositeIdRouter完全一样,否则文档会发到错误的shard上.
+ * murmur3的期望值来自公开的测试向量,sliceHash的期望值是Solr 4.10.4的CompositeIdRouter.sliceHash()算出来的.
+ */
+public class SolrShardRouterTest {
+	@Test
+	public void murmurhash3KnownValues() {
+		assertEquals(0, SolrShardRouter.murmurhash3_x86_32(""));
+		assertEquals(0x248bfa47, SolrShardRouter.murmurhash3_x86_32("hello"));
+		assertEquals(0x2e4ff723, SolrShardRouter.murmurhash3_x86_32("The quick brown fox jumps over the lazy dog"));
+		assertEquals(0xb3dd93fa, SolrShardRouter.murmurhash3_x86_32("abc"));
+		assertEquals(0xd80dfec5, SolrShardRouter.murmurhash3_x86_32("user_1"));
+		assertEquals(0xdb267197, SolrShardRouter.murmurhash3_x86_32("中文")); //按UTF-8编码计算
+	}
+
+	@Test
+	public void sliceHashPlainId() {
+		assertEquals(0xd80dfec5, SolrShardRouter.sliceHash("user_1"));
+		assertEquals(0x93fa, SolrShardRouter.sliceHash("!abc")); //'!'在最前面时前缀是空字符串
+	}
+
+	@Test
+	public void sliceHashCompositeId() {
+		//高16位来自"IBM",低16位来自"12345"
+		assertEquals(0x76271193, SolrShardRouter.sliceHash("IBM!12345"));
+		//8/8/16位
+		assertEquals(0x7994d634, SolrShardRouter.sliceHash("app!user!doc1"));
+		//"IBM/4!"只占高4位
+		assertEquals(0x73a51193, SolrShardRouter.sliceHash("IBM/4!12345"));
+		assertEquals(0x3cded65f, SolrShardRouter.sliceHash("a/8!b/8!c"));
+		assertEquals(0x35de7e5f, SolrShardRouter.sliceHash("a/4!b/20!c"));
+		assertEquals(0x3cde7073, SolrShardRouter.sliceHash("a!b!c!d")); //只看前两个'!'
+		assertEquals(0x3c007e03, SolrShardRouter.sliceHash("a!!b"));
+		assertEquals(0x1205328d, SolrShardRouter.sliceHash("t#中文!行"));
+	}
+
+	@Test
+	public void sliceHashBits() {
+		//位数从第一个'/'开始
+		assertEquals(0x79da456d, SolrShardRouter.sliceHash("t#2014/10/17!x"));
+		assertEquals(0x3c2569b3, SolrShardRouter.sliceHash("a/3/4!x"));
+		//大于32或者不是数字的位数无效,不是截成32
+		assertEquals(0x87c5af7f, SolrShardRouter.sliceHash("t#user/40!x"));
+		assertEquals(0x87c5af7e, SolrShardRouter.sliceHash("t#user/40!y"));
+		assertEquals(0x3c2569b3, SolrShardRouter.sliceHash("a/33!x"));
+		assertEquals(0x3c2569b3, SolrShardRouter.sliceHash("a/x!b"));
+		assertEquals(0x3c2569b3, SolrShardRouter.sliceHash("a/-1!b"));
+		assertEquals(0x3c2569b2, SolrShardRouter.sliceHash("a/32!x"));
+		//空的位数是0
+		assertEquals(0x3e9a9b1b, SolrShardRouter.sliceHash("a/!x"));
+		assertEquals(0x3e9a9b1b, SolrShardRouter.sliceHash("a/0!x"));
+	}
+
+	@Test
+	public void sliceHashTrailingSeparator() {
+		//"a!!"和"a!"一样是两级(SOLR-6257)
+		assertEquals(0x2c4f0000, SolrShardRouter.sliceHash("t#a!!"));
+		assertEquals(0x2c4f0000, SolrShardRouter.sliceHash("t#a!"));
+		assertEquals(0x3cde0000, SolrShardRouter.sliceHash("a!b!"));
+		assertEquals(0x3c257e00, SolrShardRouter.sliceHash("a/16!b!"));
+	}
+
+	@Test
+	public void route() {
+		JsonArray state = new JsonArray();
+		state.addObject(node("shard1", "80000000-ffffffff", "http://h1:8983/solr", "true", "active"));
+		state.addObject(node("shard1", "80000000-ffffffff", "http://h2:8983/solr", "false", "active"));
+		state.addObject(node("shard2", "0-7fffffff", "http://h3:8983/solr", "false", "active"));
+		state.addObject(node("shard2", "0-7fffffff", "http://h4:8983/solr", "true", "active"));
+		state.addObject(node("shard2", "0-7fffffff", "http://h5:8983/solr", "false", "down"));
+		SolrShardRouter router = SolrShardRouter.build(state, "core1");
+		assertEquals(2, router.size());
+
+		SolrShardRouter.Shard shard = router.route("user_1"); //0xd80dfec5是负数
+		assertEquals("shard1", shard.name);
+		assertEquals("http://h1:8983/solr/core1/update", shard.urlUpdates.get(0));
+		assertEquals(2, shard.urlUpdates.size());
+
+		shard = router.route("IBM!12345"); //0x76271193
+		assertEquals("shard2", shard.name);
+		assertEquals("http://h4:8983/solr/core1/update", shard.urlUpdates.get(0)); //leader在最前面
+		assertEquals(2, shard.urlUpdates.size()); //down的副本不要
+	}
+
+	@Test
+	public void buildWithoutCompositeId() {
+		JsonArray state = new JsonArray();
+		JsonObject jNode = node("shard1", "80000000-7fffffff", "http://h1:8983/solr", "true", "active");
+		jNode.putString(SolrTools.F_ROUTER, "implicit");
+		state.addObject(jNode);
+		assertNull(SolrShardRouter.build(state, "core1"));
+	}
+
+	private static JsonObject node(String shard, String range, String baseUrl, String leader, String state) {
+		JsonObject jNode = new JsonObject();
+		jNode.putString(SolrTools.F_SHARD, shard);
+		jNode.putString(SolrTools.F_RANGE, range);
+		jNode.putString(SolrTools.F_ROUTER, "compositeId");
+		jNode.putString("base_url", baseUrl);
+		jNode.putString("leader", leader);
+		jNode.putString("state", state);
+		return jNode;
+	}
+}